@@ -22,7 +22,11 @@
 
   {:author "Michał Marczyk"}
 
-  (:import (psq IPrioritySearchQueue PersistentPrioritySearchQueue)
+  (:require [clojure.core.reducers :as r])
+  (:import (psq ConcurrentPrioritySearchQueue FnMeasure
+                FrozenPrioritySearchQueue IPrioritySearchQueue
+                LongLongPrioritySearchQueue Measure
+                PersistentPrioritySearchQueue ShardedPrioritySearchQueue)
            (java.util Comparator)))
 
 
@@ -35,7 +39,7 @@
   must be a collection of map entries or doubleton vectors."
   {:added "0.0.1"}
   [coll]
-  (reduce conj PersistentPrioritySearchQueue/EMPTY coll))
+  (into PersistentPrioritySearchQueue/EMPTY coll))
 
 
 (defn psqueue*
@@ -88,7 +92,98 @@
   doubleton vectors."
   {:added "0.0.2"}
   [key-comparator priority-comparator coll]
-  (reduce conj (psqueue-by key-comparator priority-comparator) coll))
+  (into (psqueue-by key-comparator priority-comparator) coll))
+
+
+(defn psq-from-sorted
+  "Returns a new priority search queue containing the contents of coll, which
+  must be a collection of map entries or doubleton vectors sorted by key in
+  ascending order. The PSQ is built in linear time. Throws an exception if
+  the keys are out of order; entries with equal keys are handled as if by
+  repeated uses of assoc."
+  {:added "0.0.3"}
+  [coll]
+  (PersistentPrioritySearchQueue/createFromSorted (seq coll)))
+
+
+(defn psq-from-sorted-by
+  "Like psq-from-sorted, but uses the supplied comparators. coll must be
+  sorted in ascending order according to key-comparator."
+  {:added "0.0.3"}
+  [key-comparator priority-comparator coll]
+  (PersistentPrioritySearchQueue/createFromSorted
+    ^Comparator key-comparator
+    ^Comparator priority-comparator
+    (seq coll)
+    true))
+
+
+(defn long-psqueue
+  "keypriority => key priority
+  Returns a new priority search queue with supplied mappings, specialized to
+  long keys and long priorities (both in natural order), which it stores
+  unboxed. Supports the sorted map API, peek, pop, priority-seq, seq<,
+  seq<=, rseq< and rseq<=, but not the other functions in this namespace."
+  {:added "0.0.3"}
+  [& keypriorities]
+  (LongLongPrioritySearchQueue/create (seq keypriorities)))
+
+
+(defn long-psq
+  "Like long-psqueue, but takes a collection of map entries or doubleton
+  vectors."
+  {:added "0.0.3"}
+  [coll]
+  (into LongLongPrioritySearchQueue/EMPTY coll))
+
+
+(defn freeze
+  "Returns a read-only copy of the given PSQ packed into arrays, which takes
+  less memory and supports faster lookups and traversals. Supports the sorted
+  map API, nth, rank, nearest, peek, priority-seq, seq<, seq<=, rseq< and
+  rseq<=. assoc, dissoc, conj and pop return regular PSQs, thawed on first
+  use."
+  {:added "0.0.3"}
+  [psq]
+  (.freeze ^PersistentPrioritySearchQueue psq))
+
+
+(defn thaw
+  "Returns a regular PSQ with the contents of the given frozen PSQ."
+  {:added "0.0.3"}
+  [frozen]
+  (.thaw ^FrozenPrioritySearchQueue frozen))
+
+
+(defn concurrent-psq
+  "Returns a thread-safe mutable reference to a PSQ, initially psq (or an
+  empty PSQ). Deref it for the current snapshot; get, count and its peek,
+  atMost and below methods also read the snapshot without locking. Use its
+  assoc, without and pop methods to update it. Concurrent updates are
+  combined, so that one thread applies a batch of them to a transient per
+  round."
+  {:added "0.0.3"}
+  ([]
+   (ConcurrentPrioritySearchQueue.))
+  ([psq]
+   (ConcurrentPrioritySearchQueue. psq)))
+
+
+(defn sharded-psq
+  "Returns a thread-safe mutable priority search queue with the contents of
+  psq partitioned by key into n shards of equal size, which are updated
+  independently. Deref it for the contents joined into a single PSQ;
+  get, count and its peek, pop, assoc, without, atMost(Range) and
+  below(Range) methods operate on the shards directly. Call its rebalance
+  method to redistribute the entries evenly once they become skewed.
+
+  NB. peek and pop scan the shards one by one and are not linearizable:
+  under concurrent updates, pop may remove an entry other than the one with
+  the lowest priority at the time, or return nil while entries are being
+  added. Each entry is still removed at most once."
+  {:added "0.0.3"}
+  [psq n]
+  (ShardedPrioritySearchQueue. ^PersistentPrioritySearchQueue psq (int n)))
 
 
 (defn priority-seq
@@ -97,7 +192,7 @@
   order."
   {:added "0.0.1"}
   [psq]
-  (.prioritySeq ^PersistentPrioritySearchQueue psq))
+  (.prioritySeq ^IPrioritySearchQueue psq))
 
 
 (defn rank
@@ -105,7 +200,7 @@
   not present."
   {:added "0.0.1"}
   [psq key]
-  (.rank ^PersistentPrioritySearchQueue psq key))
+  (.rank ^IPrioritySearchQueue psq key))
 
 
 (defn nearest
@@ -114,7 +209,7 @@
   clojure.core/rsubseq for test in #{<, <=}."
   {:added "0.0.2"}
   [psq test key]
-  (let [psq ^PersistentPrioritySearchQueue psq]
+  (let [psq ^IPrioritySearchQueue psq]
     (condp identical? test
       < (.nearestLeft psq key false)
       <= (.nearestLeft psq key true)
@@ -156,43 +251,258 @@
   than, (into (empty psq) (subseq coll >= start <= end))."
   {:added "0.0.1"}
   ([psq test limit]
-   (cond
-     (zero? (count psq))
-     psq
-
-     (#{> >=} test)
-     (let [k (key (nth psq (dec (count psq))))]
-       (if (pos? (.compare (.comparator ^clojure.lang.Sorted psq)
-                           limit k))
-         (empty psq)
-         (subrange psq test limit <= k)))
-
-     :else
-     (let [k (key (nth psq 0))]
-       (if (neg? (.compare (.comparator ^clojure.lang.Sorted psq)
-                           limit k))
-         (empty psq)
-         (subrange psq >= k test limit)))))
+   (let [psq ^PersistentPrioritySearchQueue psq]
+     (condp identical? test
+       > (.subrangeFrom psq limit false)
+       >= (.subrangeFrom psq limit true)
+       < (.subrangeTo psq limit false)
+       <= (.subrangeTo psq limit true)
+       (throw
+         (ex-info "The test argument to subrange must be one of <, <=, >=, >" {})))))
+  ([psq start-test start end-test end]
+   (.subrange ^PersistentPrioritySearchQueue psq
+              start (identical? start-test >=)
+              end (identical? end-test <=))))
+
+
+(defn count-range
+  "Returns the number of keys of psq between start and end in logarithmic
+  time. The tests determine whether the endpoints are counted as in subrange;
+  when passed just start and end, both are counted."
+  {:added "0.0.3"}
+  ([psq start end]
+   (count-range psq >= start <= end))
   ([psq start-test start end-test end]
-   (if (zero? (count psq))
-     psq
-     (let [comp (.comparator ^clojure.lang.Sorted psq)]
-       (if (pos? (.compare comp start end))
-         (throw (IndexOutOfBoundsException.
-                  "start greater than end in subrange"))
-         (let [l (first (subseq psq start-test start))
-               h (first (rsubseq psq end-test end))]
-           (if (and l h)
-             (let [lk (key l)
-                   hk (key h)]
-               (if (neg? (.compare comp hk lk))
-                 (empty psq)
-                 (let [[_ low-e r] (split psq lk)
-                       [l high-e _] (split r hk)]
-                   (cond-> (or l (empty psq))
-                     low-e (conj low-e)
-                     high-e (conj high-e)))))
-             (empty psq))))))))
+   (.countRange ^PersistentPrioritySearchQueue psq
+                start (identical? start-test >=)
+                end (identical? end-test <=))))
+
+
+(defn split-at-index
+  "Returns [(take-n psq i) (drop-n psq i)], computed in logarithmic time."
+  {:added "0.0.3"}
+  [psq i]
+  (.splitAt ^PersistentPrioritySearchQueue psq (int i)))
+
+
+(defn take-n
+  "Returns a PSQ comprising the first n entries of psq in key order, in
+  logarithmic time."
+  {:added "0.0.3"}
+  [psq n]
+  (.take ^PersistentPrioritySearchQueue psq (int n)))
+
+
+(defn drop-n
+  "Returns a PSQ comprising all but the first n entries of psq in key order,
+  in logarithmic time."
+  {:added "0.0.3"}
+  [psq n]
+  (.drop ^PersistentPrioritySearchQueue psq (int n)))
+
+
+(defn slice
+  "Returns a PSQ comprising the entries of psq at indices from start
+  (inclusive) to end (exclusive) in key order, in logarithmic time. Throws
+  IndexOutOfBoundsException unless 0 <= start <= end <= (count psq)."
+  {:added "0.0.3"}
+  [psq start end]
+  (.slice ^PersistentPrioritySearchQueue psq (int start) (int end)))
+
+
+(defn join
+  "Returns a PSQ containing the entries of left and right, which must use the
+  same comparators and where every key of left must be less than every key of
+  right; throws an exception otherwise. The inverse of split, running in
+  logarithmic time. The metadata of left is kept."
+  {:added "0.0.3"}
+  [left right]
+  (.join ^PersistentPrioritySearchQueue left
+         ^PersistentPrioritySearchQueue right))
+
+
+(defn dissoc-range
+  "Returns a PSQ comprising the entries of the given PSQ except those between
+  start and end, keeping its metadata. The tests determine whether the
+  endpoints are removed as in subrange: start-test must be either > or >=,
+  end-test must be either < or <=. When passed just start and end, removes
+  both endpoints.
+
+  Splits psq at both ends and joins the outer pieces, so runs in logarithmic
+  time regardless of the number of entries removed."
+  {:added "0.0.3"}
+  ([psq start end]
+   (dissoc-range psq >= start <= end))
+  ([psq start-test start end-test end]
+   (when-not (and (#{> >=} start-test) (#{< <=} end-test))
+     (throw
+       (ex-info "The tests passed to dissoc-range must be one of >, >= and one of <, <=" {})))
+   (.dissocRange ^PersistentPrioritySearchQueue psq
+                 start (identical? start-test >=)
+                 end (identical? end-test <=))))
+
+
+(defn union
+  "Returns a PSQ containing the entries of both psq1 and psq2, which must use
+  the same comparators. Where a key is present in both, the priority from psq2
+  is used. Runs in O(m log(n/m + 1)) time, where m <= n are the sizes of the
+  inputs."
+  {:added "0.0.3"}
+  [psq1 psq2]
+  (.union ^PersistentPrioritySearchQueue psq1
+          ^PersistentPrioritySearchQueue psq2
+          nil))
+
+
+(defn union-with
+  "Like union, but where a key is present in both psq1 and psq2, its priority
+  in the result is (f priority-in-psq1 priority-in-psq2)."
+  {:added "0.0.3"}
+  [f psq1 psq2]
+  (.union ^PersistentPrioritySearchQueue psq1
+          ^PersistentPrioritySearchQueue psq2
+          ^clojure.lang.IFn f))
+
+
+(defn intersection
+  "Returns a PSQ containing the entries of psq1 whose keys are also present
+  in psq2, which must use the same comparators, with the priorities from psq2.
+  Runs in O(m log(n/m + 1)) time, where m <= n are the sizes of the inputs."
+  {:added "0.0.3"}
+  [psq1 psq2]
+  (.intersection ^PersistentPrioritySearchQueue psq1
+                 ^PersistentPrioritySearchQueue psq2
+                 nil))
+
+
+(defn intersection-with
+  "Like intersection, but the priority of each entry in the result is
+  (f priority-in-psq1 priority-in-psq2)."
+  {:added "0.0.3"}
+  [f psq1 psq2]
+  (.intersection ^PersistentPrioritySearchQueue psq1
+                 ^PersistentPrioritySearchQueue psq2
+                 ^clojure.lang.IFn f))
+
+
+(defn difference
+  "Returns a PSQ containing the entries of psq1 whose keys are not present in
+  psq2, which must use the same comparators. Runs in O(m log(n/m + 1)) time,
+  where m <= n are the sizes of the inputs."
+  {:added "0.0.3"}
+  [psq1 psq2]
+  (.difference ^PersistentPrioritySearchQueue psq1
+               ^PersistentPrioritySearchQueue psq2))
+
+
+(defn diff
+  "Returns a vector of three PSQs: the entries of psq2 whose keys are not
+  present in psq1, the entries of psq1 whose keys are not present in psq2 and
+  the entries of psq2 whose keys are present in psq1 with a different
+  priority. psq1 and psq2 must use the same comparators. Subtrees shared by
+  the inputs are skipped, so diffing a PSQ against one derived from it by d
+  updates takes O(d log^2 n) time."
+  {:added "0.0.3"}
+  [psq1 psq2]
+  (.diff ^PersistentPrioritySearchQueue psq1
+         ^PersistentPrioritySearchQueue psq2))
+
+
+(defn adjust
+  "Returns a PSQ in which the priority of k is replaced with (f priority), or
+  psq itself if k is not present. Cheaper than assoc, as the shape of the
+  underlying tree does not change."
+  {:added "0.0.3"}
+  [psq k f]
+  (.adjust ^PersistentPrioritySearchQueue psq k ^clojure.lang.IFn f))
+
+
+(defn update-priority
+  "Returns a PSQ in which the priority of k is p, or psq itself if k is not
+  present. Cheaper than assoc, as the shape of the underlying tree does not
+  change."
+  {:added "0.0.3"}
+  [psq k p]
+  (.updatePriority ^PersistentPrioritySearchQueue psq k p))
+
+
+(defn pop-n
+  "Returns a vector of a vector of the (at most) n entries of psq with the
+  lowest priorities, in priority order, and a PSQ of the remaining entries.
+  Unlike n calls to peek and pop, builds the remaining PSQ once."
+  {:added "0.0.3"}
+  [psq n]
+  (.popN ^PersistentPrioritySearchQueue psq (int n)))
+
+
+(defn pop<
+  "Like pop-n, but pops all entries with priorities < p."
+  {:added "0.0.3"}
+  [psq p]
+  (.popBelow ^PersistentPrioritySearchQueue psq p))
+
+
+(defn pop<=
+  "Like pop-n, but pops all entries with priorities <= p."
+  {:added "0.0.3"}
+  [psq p]
+  (.popAtMost ^PersistentPrioritySearchQueue psq p))
+
+
+(defn delete<=
+  "Returns a vector of a vector of the entries of psq with priorities <= p (and
+  keys between low and high inclusive, if given), in key order, and a PSQ of
+  the remaining entries. Only the paths leading to the removed entries are
+  rebuilt, so removing r entries takes about O(r log(n/r)) time."
+  {:added "0.0.3"}
+  ([psq p]
+   (.deleteAtMost ^PersistentPrioritySearchQueue psq p))
+  ([psq p low high]
+   (.deleteAtMostRange ^PersistentPrioritySearchQueue psq low high p)))
+
+
+(defn delete<
+  "Like delete<=, but removes the entries with priorities < p."
+  {:added "0.0.3"}
+  ([psq p]
+   (.deleteBelow ^PersistentPrioritySearchQueue psq p))
+  ([psq p low high]
+   (.deleteBelowRange ^PersistentPrioritySearchQueue psq low high p)))
+
+
+(defn measure
+  "Returns a measure for use with with-measure: the measure of a collection of
+  entries is the result of combining (f k p) over its entries k, p using
+  combinef, which must be associative and commutative, with identity id. For
+  example, (measure 0 (fn [k p] p) +) sums priorities.
+
+  Measures created from the same (identical) functions are equal. They are
+  serializable if the functions are."
+  {:added "0.0.3"}
+  [id f combinef]
+  (FnMeasure. id f combinef))
+
+
+(defn with-measure
+  "Returns a PSQ with the entries of psq which caches the given measure (see
+  measure, or implement psq.Measure) of each subtree, so that measure-range
+  runs in logarithmic time. The tree is rebuilt in linear time. Operations
+  combining PSQs (union, join etc.) require them to use equal measures and
+  throw an exception otherwise, so define a measure once and reuse it."
+  {:added "0.0.3"}
+  [psq measure]
+  (.withMeasure ^PersistentPrioritySearchQueue psq ^Measure measure))
+
+
+(defn measure-range
+  "Returns the measure (see with-measure) of the entries of psq with keys
+  between start and end, inclusive, or of all entries if no keys are given,
+  in logarithmic time."
+  {:added "0.0.3"}
+  ([psq]
+   (.measureAll ^PersistentPrioritySearchQueue psq))
+  ([psq start end]
+   (.measureRange ^PersistentPrioritySearchQueue psq start end)))
 
 
 (defn ^:private at-most
@@ -305,3 +615,9 @@
   ([psq ubound start-test start end-test end]
    (let [sub (subrange psq start-test start end-test end)]
      (reverse-at-most sub ubound))))
+
+
+(extend-protocol r/CollFold
+  PersistentPrioritySearchQueue
+  (coll-fold [psq n combinef reducef]
+    (.fold psq n combinef reducef)))
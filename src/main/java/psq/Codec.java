@@ -0,0 +1,71 @@
+package psq;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Writes and reads the keys or priorities of a PSQ in its binary format, see
+ * PersistentPrioritySearchQueue.writeTo and readFrom.
+ */
+
+public interface Codec {
+
+    void write(DataOutput out, Object x) throws IOException;
+
+    Object read(DataInput in) throws IOException;
+
+    /**
+     * Uses Java serialization; the streams must be an ObjectOutput and an
+     * ObjectInput.
+     */
+    Codec OBJECT = new Codec() {
+        public void write(DataOutput out, Object x) throws IOException {
+            ((ObjectOutput) out).writeObject(x);
+        }
+
+        public Object read(DataInput in) throws IOException {
+            try {
+                return ((ObjectInput) in).readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+    };
+
+    Codec LONG = new Codec() {
+        public void write(DataOutput out, Object x) throws IOException {
+            out.writeLong(((Number) x).longValue());
+        }
+
+        public Object read(DataInput in) throws IOException {
+            return in.readLong();
+        }
+    };
+
+    Codec DOUBLE = new Codec() {
+        public void write(DataOutput out, Object x) throws IOException {
+            out.writeDouble(((Number) x).doubleValue());
+        }
+
+        public Object read(DataInput in) throws IOException {
+            return in.readDouble();
+        }
+    };
+
+    /**
+     * NB. uses modified UTF-8, so strings are limited to 65535 bytes once
+     * encoded.
+     */
+    Codec STRING = new Codec() {
+        public void write(DataOutput out, Object x) throws IOException {
+            out.writeUTF((String) x);
+        }
+
+        public Object read(DataInput in) throws IOException {
+            return in.readUTF();
+        }
+    };
+}
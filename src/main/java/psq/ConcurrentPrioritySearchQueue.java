@@ -0,0 +1,211 @@
+package psq;
+
+import clojure.lang.Counted;
+import clojure.lang.IDeref;
+import clojure.lang.ILookup;
+import clojure.lang.ISeq;
+import clojure.lang.Util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A mutable, thread-safe reference to a PersistentPrioritySearchQueue.
+ *
+ * Reads (deref, peek, valAt, atMost etc.) go to the current snapshot without
+ * locking. Updates use flat combining: each writer enqueues a request, and
+ * whichever writer holds the combiner lock applies all pending requests to a
+ * transient copy of the snapshot in one round, then publishes the result.
+ * Under contention, this replaces the retries of swap! on an atom with one
+ * batch of in-place updates per round.
+ */
+
+public final class ConcurrentPrioritySearchQueue
+        implements Counted, IDeref, ILookup {
+
+    // NB. limits the work done by a single combiner, so that its own request
+    // is not delayed indefinitely by a steady stream of new ones
+    static final int MAX_BATCH = 1024;
+
+    static final int ASSOC = 0;
+    static final int WITHOUT = 1;
+    static final int POP = 2;
+
+    static final class Request {
+
+        final int op;
+        final Object key;
+        final Object priority;
+        Object result;
+        Throwable error;
+        volatile boolean done;
+
+        Request(int op, Object key, Object priority) {
+            this.op = op;
+            this.key = key;
+            this.priority = priority;
+        }
+    }
+
+    volatile PersistentPrioritySearchQueue snapshot;
+
+    final ConcurrentLinkedQueue<Request> pending = new ConcurrentLinkedQueue<Request>();
+    final ReentrantLock combiner = new ReentrantLock();
+
+    public ConcurrentPrioritySearchQueue(PersistentPrioritySearchQueue init) {
+        this.snapshot = init;
+    }
+
+    public ConcurrentPrioritySearchQueue() {
+        this(PersistentPrioritySearchQueue.EMPTY);
+    }
+
+    /**
+     * Returns the current contents as a PersistentPrioritySearchQueue.
+     */
+    public PersistentPrioritySearchQueue snapshot() {
+        return snapshot;
+    }
+
+    // updates
+
+    public void assoc(Object key, Object priority) {
+        submit(new Request(ASSOC, key, priority));
+    }
+
+    public void without(Object key) {
+        submit(new Request(WITHOUT, key, null));
+    }
+
+    /**
+     * Removes the entry with the lowest priority and returns it, or returns
+     * null if the queue is empty.
+     */
+    public Object pop() {
+        return submit(new Request(POP, null, null));
+    }
+
+    Object submit(Request request) {
+        pending.add(request);
+        while (!request.done) {
+            if (combiner.tryLock()) {
+                try {
+                    combine();
+                } finally {
+                    combiner.unlock();
+                }
+            } else {
+                Thread.yield();
+            }
+        }
+        if (null != request.error)
+            throw Util.sneakyThrow(request.error);
+        return request.result;
+    }
+
+    // NB. called with the combiner lock held; requests are marked done only
+    // once the snapshot including them has been published, and requests that
+    // throw are reported to their submitters. Every polled request is marked
+    // done, whatever happens, since no other combiner will see it again
+    void combine() {
+        Request[] batch = new Request[MAX_BATCH];
+        int n = 0;
+        Request request;
+        while (n < MAX_BATCH && null != (request = pending.poll()))
+            batch[n++] = request;
+        if (0 == n)
+            return;
+        try {
+            PersistentPrioritySearchQueue.TransientPrioritySearchQueue t;
+            retry:
+            while (true) {
+                t = snapshot.asTransient();
+                for (int i = 0; i < n; i++) {
+                    request = batch[i];
+                    if (null != request.error)
+                        continue;
+                    try {
+                        apply(t, request);
+                    } catch (Throwable e) {
+                        // NB. the transient may have been left half-updated,
+                        // so the round is replayed without the failed request
+                        request.error = e;
+                        continue retry;
+                    }
+                }
+                break;
+            }
+            snapshot = t.persistent();
+        } catch (Throwable e) {
+            // the round could not be published, so it fails as a whole
+            for (int i = 0; i < n; i++)
+                if (null == batch[i].error)
+                    batch[i].error = e;
+        } finally {
+            for (int i = 0; i < n; i++)
+                batch[i].done = true;
+        }
+    }
+
+    static void apply(PersistentPrioritySearchQueue.TransientPrioritySearchQueue t,
+                      Request request) {
+        switch (request.op) {
+            case ASSOC:
+                t.assoc(request.key, request.priority);
+                break;
+            case WITHOUT:
+                t.without(request.key);
+                break;
+            case POP:
+                Object entry = t.peek();
+                if (null != entry)
+                    t.pop();
+                request.result = entry;
+                break;
+        }
+    }
+
+    // reads
+
+    public Object peek() {
+        return snapshot.peek();
+    }
+
+    public ISeq atMost(Object priority) {
+        return snapshot.atMost(priority);
+    }
+
+    public ISeq below(Object priority) {
+        return snapshot.below(priority);
+    }
+
+    public ISeq atMostRange(Object low, Object high, Object priority) {
+        return snapshot.atMostRange(low, high, priority);
+    }
+
+    public ISeq belowRange(Object low, Object high, Object priority) {
+        return snapshot.belowRange(low, high, priority);
+    }
+
+    // clojure.lang.Counted
+
+    public int count() {
+        return snapshot.count();
+    }
+
+    // clojure.lang.IDeref
+
+    public PersistentPrioritySearchQueue deref() {
+        return snapshot;
+    }
+
+    // clojure.lang.ILookup
+
+    public Object valAt(Object key) {
+        return snapshot.valAt(key);
+    }
+
+    public Object valAt(Object key, Object notFound) {
+        return snapshot.valAt(key, notFound);
+    }
+}
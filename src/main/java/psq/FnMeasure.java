@@ -0,0 +1,56 @@
+package psq;
+
+import clojure.lang.IFn;
+import clojure.lang.Util;
+
+import java.io.Serializable;
+
+/**
+ * A Measure given by Clojure functions: (f key priority) measures an entry
+ * and combinef combines measures, with identity id.
+ *
+ * FnMeasures are equal if their functions are identical and their identity
+ * elements equal, so PSQs built with measures created from the same functions
+ * can be combined. They are serializable if the functions are.
+ */
+
+public final class FnMeasure implements Measure, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public final Object id;
+    public final IFn f;
+    public final IFn combinef;
+
+    public FnMeasure(Object id, IFn f, IFn combinef) {
+        this.id = id;
+        this.f = f;
+        this.combinef = combinef;
+    }
+
+    public Object identity() {
+        return id;
+    }
+
+    public Object measure(Object key, Object priority) {
+        return f.invoke(key, priority);
+    }
+
+    public Object combine(Object x, Object y) {
+        return combinef.invoke(x, y);
+    }
+
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof FnMeasure))
+            return false;
+        FnMeasure m = (FnMeasure) o;
+        return f == m.f && combinef == m.combinef && Util.equals(id, m.id);
+    }
+
+    public int hashCode() {
+        return 31 * (31 * System.identityHashCode(f) + System.identityHashCode(combinef))
+                + Util.hash(id);
+    }
+}
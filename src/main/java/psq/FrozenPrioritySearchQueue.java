@@ -0,0 +1,603 @@
+package psq;
+
+import clojure.lang.APersistentMap;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IObj;
+import clojure.lang.ISeq;
+import clojure.lang.Indexed;
+import clojure.lang.MapEntry;
+import clojure.lang.PersistentList;
+import clojure.lang.Reversible;
+import clojure.lang.RT;
+import clojure.lang.Sorted;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-only priority search queues packed into arrays, see
+ * PersistentPrioritySearchQueue.freeze().
+ *
+ * Entries are stored in key order in parallel keys and priorities arrays. The
+ * tournament is an int array in implicit in-order layout: the subtree
+ * covering the index range [lo, hi) is rooted at its midpoint, where the
+ * index of its winner is stored; splits and sizes follow from the indices.
+ * Write operations thaw the queue into a PersistentPrioritySearchQueue (once,
+ * the result is cached) and delegate to it.
+ */
+
+public final class FrozenPrioritySearchQueue
+        extends APersistentMap
+        implements Indexed, IObj, IPrioritySearchQueue, Reversible, Sorted {
+
+    private static final long serialVersionUID = 1L;
+
+    final Object[] keys;
+    final Object[] priorities;
+    final int[] winners;
+
+    public final Comparator kcomp;
+    public final Comparator pcomp;
+
+    final IPersistentMap _meta;
+
+    // NB. a cache, rebuilt on demand after deserialization
+    volatile transient PersistentPrioritySearchQueue thawed;
+
+    // NB. keys must be sorted and distinct according to kcomp
+    FrozenPrioritySearchQueue(Object[] keys,
+                              Object[] priorities,
+                              Comparator kcomp,
+                              Comparator pcomp,
+                              IPersistentMap meta) {
+        this.keys = keys;
+        this.priorities = priorities;
+        this.kcomp = kcomp;
+        this.pcomp = pcomp;
+        this._meta = meta;
+        this.winners = new int[keys.length];
+        build(0, keys.length);
+    }
+
+    FrozenPrioritySearchQueue(FrozenPrioritySearchQueue frozen, IPersistentMap meta) {
+        this.keys = frozen.keys;
+        this.priorities = frozen.priorities;
+        this.winners = frozen.winners;
+        this.kcomp = frozen.kcomp;
+        this.pcomp = frozen.pcomp;
+        this._meta = meta;
+        // NB. the cached thawed PSQ carries the old metadata
+        PersistentPrioritySearchQueue thawed = frozen.thawed;
+        this.thawed = null == thawed ? null : thawed.withMeta(meta);
+    }
+
+    // tournament
+
+    // does the entry at index i beat that at index j?
+    boolean beats(int i, int j) {
+        int c = PersistentPrioritySearchQueue.compareWith(pcomp, priorities[i], priorities[j]);
+        return c < 0 || (c == 0 && i < j);
+    }
+
+    int build(int lo, int hi) {
+        if (lo >= hi)
+            return -1;
+        int mid = (lo + hi) >>> 1;
+        int winner = mid;
+        int left = build(lo, mid);
+        if (left >= 0 && beats(left, winner))
+            winner = left;
+        int right = build(mid + 1, hi);
+        if (right >= 0 && beats(right, winner))
+            winner = right;
+        winners[mid] = winner;
+        return winner;
+    }
+
+    // index of the winner among the entries in [lo, hi), or -1 if empty
+    int winner(int lo, int hi) {
+        return winner(lo, hi, 0, keys.length);
+    }
+
+    int winner(int lo, int hi, int nlo, int nhi) {
+        if (nlo >= nhi || hi <= nlo || nhi <= lo)
+            return -1;
+        int mid = (nlo + nhi) >>> 1;
+        if (lo <= nlo && nhi <= hi)
+            return winners[mid];
+        int ret = lo <= mid && mid < hi ? mid : -1;
+        int left = winner(lo, hi, nlo, mid);
+        if (left >= 0 && (ret < 0 || beats(left, ret)))
+            ret = left;
+        int right = winner(lo, hi, mid + 1, nhi);
+        if (right >= 0 && (ret < 0 || beats(right, ret)))
+            ret = right;
+        return ret;
+    }
+
+    boolean excluded(int i, Object priority, boolean strict) {
+        int c = PersistentPrioritySearchQueue.compareWith(pcomp, priorities[i], priority);
+        return strict ? c >= 0 : c > 0;
+    }
+
+    // key search
+
+    // index of key if present, otherwise (-(insertion point) - 1)
+    int indexOf(Object key) {
+        int lo = 0;
+        int hi = keys.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = PersistentPrioritySearchQueue.compareWith(kcomp, keys[mid], key);
+            if (c < 0)
+                lo = mid + 1;
+            else if (c > 0)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -(lo + 1);
+    }
+
+    // index of the first key >= key (> key if strict)
+    int lowerBound(Object key, boolean strict) {
+        int i = indexOf(key);
+        if (i < 0)
+            return -(i + 1);
+        return strict ? i + 1 : i;
+    }
+
+    MapEntry entry(int i) {
+        return new MapEntry(keys[i], priorities[i]);
+    }
+
+    // thawing
+
+    public PersistentPrioritySearchQueue thaw() {
+        PersistentPrioritySearchQueue ret = thawed;
+        if (null == ret) {
+            ret = new PersistentPrioritySearchQueue(kcomp, pcomp, _meta)
+                    .fromSorted(keys, priorities, keys.length);
+            thawed = ret;
+        }
+        return ret;
+    }
+
+    // traversals
+
+    ISeq traverse(int from, int to, boolean ascending) {
+        return RT.seq(RT.chunkIteratorSeq(new EntryIterator(this, from, to, ascending)));
+    }
+
+    ISeq traverseBounded(int from, int to, Object priority, boolean strict, boolean ascending) {
+        ISeq ret = RT.seq(RT.chunkIteratorSeq(
+                new BoundedIterator(this, from, to, priority, strict, ascending)
+        ));
+        if (null == ret)
+            return PersistentList.EMPTY;
+        return ret;
+    }
+
+    ISeq traverseBounded(Object low, Object high, Object priority, boolean strict, boolean ascending) {
+        return traverseBounded(
+                lowerBound(low, false),
+                lowerBound(high, true),
+                priority,
+                strict,
+                ascending
+        );
+    }
+
+    public ISeq prioritySeq() {
+        if (0 == keys.length)
+            return null;
+        return RT.seq(RT.chunkIteratorSeq(priorityIterator()));
+    }
+
+    public Iterator priorityIterator() {
+        return new PriorityIterator(this);
+    }
+
+    // IPrioritySearchQueue
+
+    public ISeq atMost(Object priority) {
+        return traverseBounded(0, keys.length, priority, false, true);
+    }
+
+    public ISeq below(Object priority) {
+        return traverseBounded(0, keys.length, priority, true, true);
+    }
+
+    public ISeq atMostRange(Object low, Object high, Object priority) {
+        return traverseBounded(low, high, priority, false, true);
+    }
+
+    public ISeq belowRange(Object low, Object high, Object priority) {
+        return traverseBounded(low, high, priority, true, true);
+    }
+
+    public ISeq reverseAtMost(Object priority) {
+        return traverseBounded(0, keys.length, priority, false, false);
+    }
+
+    public ISeq reverseBelow(Object priority) {
+        return traverseBounded(0, keys.length, priority, true, false);
+    }
+
+    public ISeq reverseAtMostRange(Object low, Object high, Object priority) {
+        return traverseBounded(low, high, priority, false, false);
+    }
+
+    public ISeq reverseBelowRange(Object low, Object high, Object priority) {
+        return traverseBounded(low, high, priority, true, false);
+    }
+
+    // rank, nearest
+
+    public int rank(Object key) {
+        int i = indexOf(key);
+        return i < 0 ? -1 : i;
+    }
+
+    public MapEntry nearestLeft(Object key, boolean inclusive) {
+        int i = lowerBound(key, inclusive) - 1;
+        return i < 0 ? null : entry(i);
+    }
+
+    public MapEntry nearestRight(Object key, boolean inclusive) {
+        int i = lowerBound(key, !inclusive);
+        return i >= keys.length ? null : entry(i);
+    }
+
+    // clojure.lang.Associative
+
+    public PersistentPrioritySearchQueue assoc(Object k, Object p) {
+        return thaw().assoc(k, p);
+    }
+
+    public boolean containsKey(Object k) {
+        return indexOf(k) >= 0;
+    }
+
+    public MapEntry entryAt(Object k) {
+        int i = indexOf(k);
+        return i < 0 ? null : entry(i);
+    }
+
+    // clojure.lang.Counted
+
+    public int count() {
+        return keys.length;
+    }
+
+    // clojure.lang.ILookup
+
+    public Object valAt(Object k) {
+        return valAt(k, null);
+    }
+
+    public Object valAt(Object k, Object notFound) {
+        int i = indexOf(k);
+        return i < 0 ? notFound : priorities[i];
+    }
+
+    // clojure.lang.IMeta
+
+    public IPersistentMap meta() {
+        return _meta;
+    }
+
+    // clojure.lang.Indexed
+
+    public Object nth(int i) {
+        if (i < 0 || i >= keys.length)
+            throw new IndexOutOfBoundsException();
+        return entry(i);
+    }
+
+    public Object nth(int i, Object notFound) {
+        if (i < 0 || i >= keys.length)
+            return notFound;
+        return entry(i);
+    }
+
+    // clojure.lang.IObj
+
+    public FrozenPrioritySearchQueue withMeta(IPersistentMap meta) {
+        return new FrozenPrioritySearchQueue(this, meta);
+    }
+
+    // clojure.lang.IPersistentCollection
+
+    public PersistentPrioritySearchQueue empty() {
+        return new PersistentPrioritySearchQueue(kcomp, pcomp, _meta);
+    }
+
+    // clojure.lang.IPersistentMap
+
+    public PersistentPrioritySearchQueue without(Object k) {
+        return thaw().without(k);
+    }
+
+    public PersistentPrioritySearchQueue assocEx(Object k, Object p) {
+        return thaw().assocEx(k, p);
+    }
+
+    // clojure.lang.IPersistentStack
+
+    public Object peek() {
+        if (0 == keys.length)
+            return null;
+        return entry(winners[keys.length >>> 1]);
+    }
+
+    public PersistentPrioritySearchQueue pop() {
+        return thaw().pop();
+    }
+
+    // clojure.lang.Reversible
+
+    public ISeq rseq() {
+        return traverse(0, keys.length, false);
+    }
+
+    // clojure.lang.Seqable
+
+    public ISeq seq() {
+        return traverse(0, keys.length, true);
+    }
+
+    // clojure.lang.Sorted
+
+    public ISeq seq(boolean ascending) {
+        return traverse(0, keys.length, ascending);
+    }
+
+    public ISeq seqFrom(Object k, boolean ascending) {
+        if (ascending)
+            return traverse(lowerBound(k, false), keys.length, true);
+        return traverse(0, lowerBound(k, true), false);
+    }
+
+    public Object entryKey(Object entry) {
+        return ((Map.Entry) entry).getKey();
+    }
+
+    public Comparator comparator() {
+        return kcomp;
+    }
+
+    // Iterable
+
+    public Iterator iterator() {
+        return new EntryIterator(this, 0, keys.length, true);
+    }
+
+    public Iterator reverseIterator() {
+        return new EntryIterator(this, 0, keys.length, false);
+    }
+
+    // iterators
+
+    /**
+     * Key order iterator over the entries at indices in [from, to).
+     */
+    static final class EntryIterator implements Iterator {
+
+        final FrozenPrioritySearchQueue psq;
+        final int from;
+        final int to;
+        final boolean ascending;
+        int i;
+
+        EntryIterator(FrozenPrioritySearchQueue psq, int from, int to, boolean ascending) {
+            this.psq = psq;
+            this.from = from;
+            this.to = to;
+            this.ascending = ascending;
+            this.i = ascending ? from : to - 1;
+        }
+
+        public boolean hasNext() {
+            return ascending ? i < to : i >= from;
+        }
+
+        public Object next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Object ret = psq.entry(i);
+            i += ascending ? 1 : -1;
+            return ret;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Key order iterator over the entries at indices in [from, to) with
+     * priorities <= (or < if strict) the given bound. Walks the implicit
+     * tournament in order with an explicit stack of index ranges, skipping
+     * subtrees outside [from, to) or whose winners exceed the bound.
+     */
+    static final class BoundedIterator implements Iterator {
+
+        // NB. pending entries are pushed as (index, EMIT)
+        static final int EMIT = -1;
+
+        final FrozenPrioritySearchQueue psq;
+        final int from;
+        final int to;
+        final Object priority;
+        final boolean strict;
+        final boolean ascending;
+
+        int[] stack = new int[64];
+        int depth;
+        int next = -1;
+
+        BoundedIterator(FrozenPrioritySearchQueue psq,
+                        int from,
+                        int to,
+                        Object priority,
+                        boolean strict,
+                        boolean ascending) {
+            this.psq = psq;
+            this.from = from;
+            this.to = to;
+            this.priority = priority;
+            this.strict = strict;
+            this.ascending = ascending;
+            push(0, psq.keys.length);
+            advance();
+        }
+
+        void push(int lo, int hi) {
+            if (hi != EMIT) {
+                if (lo >= hi || hi <= from || to <= lo)
+                    return;
+                if (psq.excluded(psq.winners[(lo + hi) >>> 1], priority, strict))
+                    return;
+            }
+            if (depth == stack.length)
+                stack = Arrays.copyOf(stack, depth * 2);
+            stack[depth++] = lo;
+            stack[depth++] = hi;
+        }
+
+        void pushEntry(int i) {
+            if (from <= i && i < to && !psq.excluded(i, priority, strict))
+                push(i, EMIT);
+        }
+
+        void advance() {
+            while (depth > 0) {
+                int hi = stack[--depth];
+                int lo = stack[--depth];
+                if (hi == EMIT) {
+                    next = lo;
+                    return;
+                }
+                int mid = (lo + hi) >>> 1;
+                if (ascending) {
+                    push(mid + 1, hi);
+                    pushEntry(mid);
+                    push(lo, mid);
+                } else {
+                    push(lo, mid);
+                    pushEntry(mid);
+                    push(mid + 1, hi);
+                }
+            }
+            next = -1;
+        }
+
+        public boolean hasNext() {
+            return next >= 0;
+        }
+
+        public Object next() {
+            if (next < 0)
+                throw new NoSuchElementException();
+            Object ret = psq.entry(next);
+            advance();
+            return ret;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Priority order iterator keeping a binary min-heap of index ranges, each
+     * represented by its winner; taking the winner of [lo, hi) replaces the
+     * range with the ranges on either side of it. Entries with equal
+     * priorities are taken in key order.
+     */
+    static final class PriorityIterator implements Iterator {
+
+        final FrozenPrioritySearchQueue psq;
+
+        int[] los = new int[16];
+        int[] his = new int[16];
+        int[] winners = new int[16];
+        int size;
+
+        PriorityIterator(FrozenPrioritySearchQueue psq) {
+            this.psq = psq;
+            push(0, psq.keys.length);
+        }
+
+        void swap(int i, int j) {
+            int lo = los[i];
+            int hi = his[i];
+            int winner = winners[i];
+            los[i] = los[j];
+            his[i] = his[j];
+            winners[i] = winners[j];
+            los[j] = lo;
+            his[j] = hi;
+            winners[j] = winner;
+        }
+
+        void push(int lo, int hi) {
+            if (lo >= hi)
+                return;
+            if (size == los.length) {
+                los = Arrays.copyOf(los, size * 2);
+                his = Arrays.copyOf(his, size * 2);
+                winners = Arrays.copyOf(winners, size * 2);
+            }
+            los[size] = lo;
+            his[size] = hi;
+            winners[size] = psq.winner(lo, hi);
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!psq.beats(winners[i], winners[parent]))
+                    return;
+                swap(parent, i);
+                i = parent;
+            }
+        }
+
+        public boolean hasNext() {
+            return size > 0;
+        }
+
+        public Object next() {
+            if (size == 0)
+                throw new NoSuchElementException();
+            int lo = los[0];
+            int hi = his[0];
+            int winner = winners[0];
+            size--;
+            los[0] = los[size];
+            his[0] = his[size];
+            winners[0] = winners[size];
+            int i = 0;
+            while (true) {
+                int l = 2 * i + 1;
+                if (l >= size)
+                    break;
+                int m = l + 1 < size && psq.beats(winners[l + 1], winners[l]) ? l + 1 : l;
+                if (!psq.beats(winners[m], winners[i]))
+                    break;
+                swap(i, m);
+                i = m;
+            }
+            push(lo, winner);
+            push(winner + 1, hi);
+            return psq.entry(winner);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
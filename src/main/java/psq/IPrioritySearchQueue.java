@@ -2,10 +2,13 @@ package psq;
 
 import clojure.lang.IPersistentStack;
 import clojure.lang.ISeq;
+import clojure.lang.MapEntry;
 
 
 public interface IPrioritySearchQueue extends IPersistentStack {
 
+    ISeq prioritySeq();
+
     ISeq atMost(Object priority);
 
     ISeq below(Object priority);
@@ -21,4 +24,10 @@ public interface IPrioritySearchQueue extends IPersistentStack {
     ISeq reverseAtMostRange(Object low, Object high, Object priority);
 
     ISeq reverseBelowRange(Object low, Object high, Object priority);
+
+    int rank(Object key);
+
+    MapEntry nearestLeft(Object key, boolean inclusive);
+
+    MapEntry nearestRight(Object key, boolean inclusive);
 }
@@ -0,0 +1,1096 @@
+package psq;
+
+import clojure.lang.APersistentMap;
+import clojure.lang.BigInt;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IObj;
+import clojure.lang.ISeq;
+import clojure.lang.MapEntry;
+import clojure.lang.PersistentList;
+import clojure.lang.Ratio;
+import clojure.lang.Reversible;
+import clojure.lang.RT;
+import clojure.lang.Sorted;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Priority search queues with long keys and long priorities, both in natural
+ * order. The tree is the same as in PersistentPrioritySearchQueue, but keys,
+ * priorities and splits are stored unboxed and compared directly; boxing only
+ * happens at the map API boundary.
+ */
+
+public final class LongLongPrioritySearchQueue
+        extends APersistentMap
+        implements IObj, IPrioritySearchQueue, Reversible, Sorted {
+
+    private static final long serialVersionUID = 1L;
+
+    static public final LongLongPrioritySearchQueue EMPTY =
+            new LongLongPrioritySearchQueue(null, 0, null);
+
+    public final Winner winner;
+
+    final int _count;
+    final IPersistentMap _meta;
+
+    static public LongLongPrioritySearchQueue create(Object... init) {
+        LongLongPrioritySearchQueue ret = EMPTY;
+        for (int i = 0; i < init.length; i += 2) {
+            ret = ret.assoc(init[i], init[i+1]);
+        }
+        return ret;
+    }
+
+    static public LongLongPrioritySearchQueue create(ISeq items) {
+        LongLongPrioritySearchQueue ret = EMPTY;
+        for (; items != null; items = items.next().next()) {
+            if (items.next() == null)
+                throw new IllegalArgumentException(
+                        String.format("No value supplied for key: %s", items.first())
+                );
+            ret = ret.assoc(items.first(), RT.second(items));
+        }
+        return ret;
+    }
+
+    LongLongPrioritySearchQueue(Winner winner, int count, IPersistentMap meta) {
+        this.winner = winner;
+        this._count = count;
+        this._meta = meta;
+    }
+
+    public static final class Winner {
+
+        public final long key;
+        public final long priority;
+        public final Loser losers;
+        public final long ubound;
+
+        Winner(long key, long priority, Loser losers, long ubound) {
+            this.key = key;
+            this.priority = priority;
+            this.losers = losers;
+            this.ubound = ubound;
+        }
+    }
+
+    public static final class Loser {
+
+        public final long key;
+        public final long priority;
+        public final Loser left;
+        public final long split;
+        public final Loser right;
+        public final int size;
+
+        Loser(long key, long priority, Loser left, long split, Loser right) {
+            this.key = key;
+            this.priority = priority;
+            this.left = left;
+            this.split = split;
+            this.right = right;
+            this.size = 1 + size(left) + size(right);
+        }
+    }
+
+    /**
+     * Mutable pair of tournament trees used by the main ops to avoid
+     * allocating intermediate Winners, as in PersistentPrioritySearchQueue.
+     */
+    static final class MatchFrame {
+
+        boolean hasLeft;
+        boolean hasRight;
+        long lkey;
+        long lpriority;
+        Loser llosers;
+        long lubound;
+        long rkey;
+        long rpriority;
+        Loser rlosers;
+        long rubound;
+        boolean found;
+
+        MatchFrame() {
+        }
+
+        MatchFrame(Winner winner) {
+            if (null != winner)
+                setLeft(winner.key, winner.priority, winner.losers, winner.ubound);
+        }
+
+        void setLeft(long key, long priority, Loser losers, long ubound) {
+            hasLeft = true;
+            lkey = key;
+            lpriority = priority;
+            llosers = losers;
+            lubound = ubound;
+        }
+
+        void setRight(long key, long priority, Loser losers, long ubound) {
+            hasRight = true;
+            rkey = key;
+            rpriority = priority;
+            rlosers = losers;
+            rubound = ubound;
+        }
+
+        void shift() {
+            hasLeft = hasRight;
+            lkey = rkey;
+            lpriority = rpriority;
+            llosers = rlosers;
+            lubound = rubound;
+            hasRight = false;
+        }
+
+        void unshift() {
+            hasRight = hasLeft;
+            rkey = lkey;
+            rpriority = lpriority;
+            rlosers = llosers;
+            rubound = lubound;
+            hasLeft = false;
+        }
+
+        Winner getLeft() {
+            if (hasLeft)
+                return new Winner(lkey, lpriority, llosers, lubound);
+            return null;
+        }
+    }
+
+    // keys and priorities
+
+    // NB. as in clojure.lang.Numbers equality, big integers which fit in a
+    // long are the same keys as the longs
+    static boolean isLong(Object o) {
+        return o instanceof Long
+                || o instanceof Integer
+                || o instanceof Short
+                || o instanceof Byte
+                || (o instanceof BigInt && null == ((BigInt) o).bipart)
+                || (o instanceof BigInteger && ((BigInteger) o).bitLength() < 64);
+    }
+
+    // NB. lookups by key treat non-long keys as absent; only assoc and
+    // priority bounds insist on longs
+    static long toLong(Object o) {
+        if (isLong(o))
+            return ((Number) o).longValue();
+        throw new ClassCastException(
+                String.format("Expected a long key or priority, got: %s", o)
+        );
+    }
+
+    static final BigInteger LONG_MIN = BigInteger.valueOf(Long.MIN_VALUE);
+    static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+
+    // NB. as in sorted maps of longs, key range bounds may be any real
+    // numbers; they are rounded to integers towards the inside of the range
+    // (up for lower bounds, down for upper bounds), and may then fall
+    // outside the long range
+    static BigInteger roundBound(Object o, RoundingMode mode) {
+        if (isLong(o))
+            return BigInteger.valueOf(((Number) o).longValue());
+        if (o instanceof BigInt)
+            return ((BigInt) o).toBigInteger();
+        if (o instanceof BigInteger)
+            return (BigInteger) o;
+        if (o instanceof Ratio) {
+            Ratio r = (Ratio) o;
+            return new BigDecimal(r.numerator)
+                    .divide(new BigDecimal(r.denominator), 0, mode)
+                    .toBigInteger();
+        }
+        if (o instanceof BigDecimal)
+            return ((BigDecimal) o).setScale(0, mode).toBigInteger();
+        if (o instanceof Double || o instanceof Float) {
+            double d = ((Number) o).doubleValue();
+            if (Double.isNaN(d))
+                throw new IllegalArgumentException("NaN is not a valid range bound");
+            // NB. infinities lie beyond the long range either way
+            if (Double.isInfinite(d))
+                return d > 0 ? LONG_MAX.add(BigInteger.ONE) : LONG_MIN.subtract(BigInteger.ONE);
+            return new BigDecimal(d).setScale(0, mode).toBigInteger();
+        }
+        throw new IllegalArgumentException(
+                String.format("Expected a real number as a range bound, got: %s", o)
+        );
+    }
+
+    // tree balancing
+
+    static int size(Loser loser) {
+        if (null == loser)
+            return 0;
+        return loser.size;
+    }
+
+    static int size(Winner winner) {
+        if (null == winner)
+            return 0;
+        return size(winner.losers) + 1;
+    }
+
+    static int omega(int size) {
+        return 4 * size;
+    }
+
+    static Loser singleLeft(long key, long priority, Loser left, long split, Loser right) {
+        if (right.key <= right.split && priority <= right.priority)
+            return new Loser(
+                    key,
+                    priority,
+                    new Loser(right.key, right.priority, left, split, right.left),
+                    right.split,
+                    right.right
+            );
+        return new Loser(
+                right.key,
+                right.priority,
+                new Loser(key, priority, left, split, right.left),
+                right.split,
+                right.right
+        );
+    }
+
+    static Loser singleRight(long key, long priority, Loser left, long split, Loser right) {
+        if (left.key > left.split && priority <= left.priority)
+            return new Loser(
+                    key,
+                    priority,
+                    left.left,
+                    left.split,
+                    new Loser(left.key, left.priority, left.right, split, right)
+            );
+        return new Loser(
+                left.key,
+                left.priority,
+                left.left,
+                left.split,
+                new Loser(key, priority, left.right, split, right)
+        );
+    }
+
+    static Loser doubleLeft(long key, long priority, Loser left, long split, Loser right) {
+        return singleLeft(
+                key, priority, left, split,
+                singleRight(right.key, right.priority, right.left, right.split, right.right)
+        );
+    }
+
+    static Loser doubleRight(long key, long priority, Loser left, long split, Loser right) {
+        return singleRight(
+                key, priority,
+                singleLeft(left.key, left.priority, left.left, left.split, left.right),
+                split, right
+        );
+    }
+
+    static Loser balance(long key, long priority, Loser left, long split, Loser right) {
+        int sl = size(left);
+        int sr = size(right);
+
+        if (sl + sr < 2)
+            return new Loser(key, priority, left, split, right);
+        if (sr > omega(sl)) {
+            if (size(right.left) < size(right.right))
+                return singleLeft(key, priority, left, split, right);
+            return doubleLeft(key, priority, left, split, right);
+        }
+        if (sl > omega(sr)) {
+            if (size(left.right) < size(left.left))
+                return singleRight(key, priority, left, split, right);
+            return doubleRight(key, priority, left, split, right);
+        }
+        return new Loser(key, priority, left, split, right);
+    }
+
+    // main ops
+
+    static void play(MatchFrame mf) {
+        if (!mf.hasLeft) {
+            if (!mf.hasRight)
+                return;
+            mf.shift();
+        }
+        if (!mf.hasRight)
+            return;
+
+        if (mf.lpriority <= mf.rpriority)
+            mf.setLeft(
+                    mf.lkey,
+                    mf.lpriority,
+                    balance(mf.rkey, mf.rpriority, mf.llosers, mf.lubound, mf.rlosers),
+                    mf.rubound
+            );
+        else
+            mf.setLeft(
+                    mf.rkey,
+                    mf.rpriority,
+                    balance(mf.lkey, mf.lpriority, mf.llosers, mf.lubound, mf.rlosers),
+                    mf.rubound
+            );
+        mf.hasRight = false;
+    }
+
+    // NB. expects mf.llosers to be non-null
+    static void unplay(MatchFrame mf) {
+        Loser losers = mf.llosers;
+        long wkey = mf.lkey;
+        long wpriority = mf.lpriority;
+        long wubound = mf.lubound;
+        mf.hasRight = true;
+        mf.llosers = losers.left;
+        mf.lubound = losers.split;
+        mf.rlosers = losers.right;
+        mf.rubound = wubound;
+        if (losers.key <= losers.split) {
+            mf.lkey = losers.key;
+            mf.lpriority = losers.priority;
+            mf.rkey = wkey;
+            mf.rpriority = wpriority;
+            return;
+        }
+        mf.lkey = wkey;
+        mf.lpriority = wpriority;
+        mf.rkey = losers.key;
+        mf.rpriority = losers.priority;
+    }
+
+    static void secondBest(Loser losers, long ubound, MatchFrame mf) {
+        if (null == losers)
+            return;
+
+        if (losers.key <= losers.split) {
+            secondBest(losers.right, ubound, mf);
+            mf.unshift();
+            mf.setLeft(losers.key, losers.priority, losers.left, losers.split);
+        } else {
+            secondBest(losers.left, losers.split, mf);
+            mf.setRight(losers.key, losers.priority, losers.right, ubound);
+        }
+        play(mf);
+    }
+
+    static void insert(long key, long priority, MatchFrame mf) {
+        if (null == mf.llosers) {
+            if (key == mf.lkey) {
+                mf.found = true;
+                mf.setLeft(key, priority, null, key);
+            } else if (key < mf.lkey) {
+                mf.unshift();
+                mf.setLeft(key, priority, null, key);
+                play(mf);
+            } else {
+                mf.setRight(key, priority, null, key);
+                play(mf);
+            }
+            return;
+        }
+
+        unplay(mf);
+        long lkey = mf.lkey;
+        long lpriority = mf.lpriority;
+        Loser llosers = mf.llosers;
+        long lubound = mf.lubound;
+        long rkey = mf.rkey;
+        long rpriority = mf.rpriority;
+        Loser rlosers = mf.rlosers;
+        long rubound = mf.rubound;
+        if (key <= lubound) {
+            mf.hasRight = false;
+            insert(key, priority, mf);
+            mf.setRight(rkey, rpriority, rlosers, rubound);
+        } else {
+            mf.shift();
+            insert(key, priority, mf);
+            mf.unshift();
+            mf.setLeft(lkey, lpriority, llosers, lubound);
+        }
+        play(mf);
+    }
+
+    static void delete(long key, MatchFrame mf) {
+        if (null == mf.llosers) {
+            if (key == mf.lkey) {
+                mf.found = true;
+                mf.hasLeft = false;
+            }
+            return;
+        }
+
+        unplay(mf);
+        long lkey = mf.lkey;
+        long lpriority = mf.lpriority;
+        Loser llosers = mf.llosers;
+        long lubound = mf.lubound;
+        long rkey = mf.rkey;
+        long rpriority = mf.rpriority;
+        Loser rlosers = mf.rlosers;
+        long rubound = mf.rubound;
+        if (key <= lubound) {
+            mf.hasRight = false;
+            delete(key, mf);
+            if (!mf.found)
+                return;
+            mf.setRight(rkey, rpriority, rlosers, rubound);
+        } else {
+            mf.shift();
+            delete(key, mf);
+            if (!mf.found)
+                return;
+            mf.unshift();
+            mf.setLeft(lkey, lpriority, llosers, lubound);
+        }
+        play(mf);
+    }
+
+    // returns the loser holding key, or null if key is absent or held by
+    // the winner
+    static Loser lookup(long key, Loser losers) {
+        while (null != losers) {
+            if (key == losers.key)
+                return losers;
+            if (key > losers.split)
+                losers = losers.right;
+            else
+                losers = losers.left;
+        }
+        return null;
+    }
+
+    // primitive API
+
+    public LongLongPrioritySearchQueue assoc(long key, long priority) {
+        if (null == winner)
+            return new LongLongPrioritySearchQueue(new Winner(key, priority, null, key), 1, _meta);
+        MatchFrame mf = new MatchFrame(winner);
+        insert(key, priority, mf);
+        return new LongLongPrioritySearchQueue(
+                mf.getLeft(),
+                mf.found ? _count : _count + 1,
+                _meta
+        );
+    }
+
+    public LongLongPrioritySearchQueue without(long key) {
+        if (null == winner)
+            return this;
+        MatchFrame mf = new MatchFrame(winner);
+        delete(key, mf);
+        if (!mf.found)
+            return this;
+        return new LongLongPrioritySearchQueue(mf.getLeft(), _count - 1, _meta);
+    }
+
+    public boolean containsKey(long key) {
+        if (null == winner)
+            return false;
+        return key == winner.key || null != lookup(key, winner.losers);
+    }
+
+    public long priority(long key, long notFound) {
+        if (null == winner)
+            return notFound;
+        if (key == winner.key)
+            return winner.priority;
+        Loser loser = lookup(key, winner.losers);
+        if (null == loser)
+            return notFound;
+        return loser.priority;
+    }
+
+    public long peekKey() {
+        if (null == winner)
+            throw new NoSuchElementException();
+        return winner.key;
+    }
+
+    public long peekPriority() {
+        if (null == winner)
+            throw new NoSuchElementException();
+        return winner.priority;
+    }
+
+    // traversals
+
+    ISeq traverse(boolean ascending,
+                  long low,
+                  long high,
+                  boolean hasPriority,
+                  long priority,
+                  boolean strict) {
+        return RT.seq(RT.chunkIteratorSeq(
+                new EntryIterator(winner, ascending, low, high, hasPriority, priority, strict)
+        ));
+    }
+
+    ISeq traverseBounded(boolean ascending,
+                         long low,
+                         long high,
+                         Object priority,
+                         boolean strict) {
+        ISeq ret = traverse(ascending, low, high, true, toLong(priority), strict);
+        if (null == ret)
+            return PersistentList.EMPTY;
+        return ret;
+    }
+
+    ISeq traverseBounded(boolean ascending,
+                         Object low,
+                         Object high,
+                         Object priority,
+                         boolean strict) {
+        if (isLong(low) && isLong(high))
+            return traverseBounded(
+                    ascending, ((Number) low).longValue(), ((Number) high).longValue(), priority, strict
+            );
+        BigInteger l = roundBound(low, RoundingMode.CEILING);
+        BigInteger h = roundBound(high, RoundingMode.FLOOR);
+        if (l.compareTo(h) > 0 || l.compareTo(LONG_MAX) > 0 || h.compareTo(LONG_MIN) < 0)
+            return PersistentList.EMPTY;
+        return traverseBounded(ascending, l.max(LONG_MIN).longValue(), h.min(LONG_MAX).longValue(), priority, strict);
+    }
+
+    public ISeq prioritySeq() {
+        if (0 == _count)
+            return null;
+        return RT.seq(RT.chunkIteratorSeq(priorityIterator()));
+    }
+
+    public Iterator priorityIterator() {
+        return new PriorityIterator(winner);
+    }
+
+    // IPrioritySearchQueue
+
+    public ISeq atMost(Object priority) {
+        return traverseBounded(true, Long.MIN_VALUE, Long.MAX_VALUE, priority, false);
+    }
+
+    public ISeq below(Object priority) {
+        return traverseBounded(true, Long.MIN_VALUE, Long.MAX_VALUE, priority, true);
+    }
+
+    public ISeq atMostRange(Object low, Object high, Object priority) {
+        return traverseBounded(true, low, high, priority, false);
+    }
+
+    public ISeq belowRange(Object low, Object high, Object priority) {
+        return traverseBounded(true, low, high, priority, true);
+    }
+
+    public ISeq reverseAtMost(Object priority) {
+        return traverseBounded(false, Long.MIN_VALUE, Long.MAX_VALUE, priority, false);
+    }
+
+    public ISeq reverseBelow(Object priority) {
+        return traverseBounded(false, Long.MIN_VALUE, Long.MAX_VALUE, priority, true);
+    }
+
+    public ISeq reverseAtMostRange(Object low, Object high, Object priority) {
+        return traverseBounded(false, low, high, priority, false);
+    }
+
+    public ISeq reverseBelowRange(Object low, Object high, Object priority) {
+        return traverseBounded(false, low, high, priority, true);
+    }
+
+    // rank, nearest
+
+    public int rank(Object k) {
+        if (!isLong(k) || null == winner)
+            return -1;
+        long key = ((Number) k).longValue();
+        if (key == winner.ubound)
+            return _count - 1;
+        int rank = 0;
+        for (Loser loser = winner.losers; loser != null; ) {
+            if (key < loser.split) {
+                loser = loser.left;
+            } else if (key > loser.split) {
+                rank += size(loser.left) + 1;
+                loser = loser.right;
+            } else {
+                return rank + size(loser.left);
+            }
+        }
+        return -1;
+    }
+
+    // NB. every key is the split of some loser or the winner's ubound, so
+    // the nearest key is found by descending the splits
+    public MapEntry nearestLeft(Object k, boolean inclusive) {
+        if (!isLong(k) || null == winner)
+            return null;
+        long key = ((Number) k).longValue();
+        if (key > winner.ubound || (inclusive && key == winner.ubound))
+            return entryAt(winner.ubound);
+        boolean found = false;
+        long best = 0;
+        for (Loser loser = winner.losers; loser != null; ) {
+            if (key > loser.split || (inclusive && key == loser.split)) {
+                found = true;
+                best = loser.split;
+                loser = loser.right;
+            } else {
+                loser = loser.left;
+            }
+        }
+        return found ? entryAt(best) : null;
+    }
+
+    public MapEntry nearestRight(Object k, boolean inclusive) {
+        if (!isLong(k) || null == winner)
+            return null;
+        long key = ((Number) k).longValue();
+        if (key > winner.ubound || (!inclusive && key == winner.ubound))
+            return null;
+        long best = winner.ubound;
+        for (Loser loser = winner.losers; loser != null; ) {
+            if (key < loser.split || (inclusive && key == loser.split)) {
+                best = loser.split;
+                loser = loser.left;
+            } else {
+                loser = loser.right;
+            }
+        }
+        return entryAt(best);
+    }
+
+    // clojure.lang.Associative
+
+    public LongLongPrioritySearchQueue assoc(Object k, Object p) {
+        return assoc(toLong(k), toLong(p));
+    }
+
+    public boolean containsKey(Object k) {
+        return isLong(k) && containsKey(((Number) k).longValue());
+    }
+
+    public MapEntry entryAt(Object k) {
+        if (!isLong(k) || null == winner)
+            return null;
+        long key = ((Number) k).longValue();
+        if (key == winner.key)
+            return new MapEntry(winner.key, winner.priority);
+        Loser loser = lookup(key, winner.losers);
+        if (null == loser)
+            return null;
+        return new MapEntry(loser.key, loser.priority);
+    }
+
+    // clojure.lang.Counted
+
+    public int count() {
+        return _count;
+    }
+
+    // clojure.lang.ILookup
+
+    public Object valAt(Object k) {
+        return valAt(k, null);
+    }
+
+    public Object valAt(Object k, Object notFound) {
+        MapEntry e = entryAt(k);
+        if (null == e)
+            return notFound;
+        return e.val();
+    }
+
+    // clojure.lang.IMeta
+
+    public IPersistentMap meta() {
+        return _meta;
+    }
+
+    // clojure.lang.IObj
+
+    public LongLongPrioritySearchQueue withMeta(IPersistentMap meta) {
+        return new LongLongPrioritySearchQueue(winner, _count, meta);
+    }
+
+    // clojure.lang.IPersistentCollection
+
+    public LongLongPrioritySearchQueue empty() {
+        return new LongLongPrioritySearchQueue(null, 0, _meta);
+    }
+
+    // clojure.lang.IPersistentMap
+
+    public LongLongPrioritySearchQueue without(Object k) {
+        if (!isLong(k))
+            return this;
+        return without(((Number) k).longValue());
+    }
+
+    public LongLongPrioritySearchQueue assocEx(Object k, Object p) {
+        if (containsKey(k))
+            throw new RuntimeException("key already present");
+        return assoc(k, p);
+    }
+
+    // clojure.lang.IPersistentStack
+
+    public Object peek() {
+        if (null == winner)
+            return null;
+        return new MapEntry(winner.key, winner.priority);
+    }
+
+    public LongLongPrioritySearchQueue pop() {
+        if (null == winner)
+            throw new IllegalStateException("Can't pop empty queue");
+        MatchFrame mf = new MatchFrame();
+        secondBest(winner.losers, winner.ubound, mf);
+        return new LongLongPrioritySearchQueue(mf.getLeft(), _count - 1, _meta);
+    }
+
+    // clojure.lang.Reversible
+
+    public ISeq rseq() {
+        if (0 == _count)
+            return null;
+        return traverse(false, Long.MIN_VALUE, Long.MAX_VALUE, false, 0, false);
+    }
+
+    // clojure.lang.Seqable
+
+    public ISeq seq() {
+        if (0 == _count)
+            return null;
+        return traverse(true, Long.MIN_VALUE, Long.MAX_VALUE, false, 0, false);
+    }
+
+    // clojure.lang.Sorted
+
+    public ISeq seq(boolean ascending) {
+        if (ascending)
+            return seq();
+        return rseq();
+    }
+
+    public ISeq seqFrom(Object k, boolean ascending) {
+        if (0 == _count)
+            return null;
+        if (!isLong(k)) {
+            BigInteger key = roundBound(k, ascending ? RoundingMode.CEILING : RoundingMode.FLOOR);
+            if (ascending ? key.compareTo(LONG_MAX) > 0 : key.compareTo(LONG_MIN) < 0)
+                return null;
+            k = key.max(LONG_MIN).min(LONG_MAX).longValue();
+        }
+        long key = ((Number) k).longValue();
+        if (ascending)
+            return traverse(true, key, Long.MAX_VALUE, false, 0, false);
+        return traverse(false, Long.MIN_VALUE, key, false, 0, false);
+    }
+
+    public Object entryKey(Object entry) {
+        return ((Map.Entry) entry).getKey();
+    }
+
+    public Comparator comparator() {
+        return RT.DEFAULT_COMPARATOR;
+    }
+
+    // Iterable
+
+    public Iterator iterator() {
+        return new EntryIterator(winner, true, Long.MIN_VALUE, Long.MAX_VALUE, false, 0, false);
+    }
+
+    public Iterator reverseIterator() {
+        return new EntryIterator(winner, false, Long.MIN_VALUE, Long.MAX_VALUE, false, 0, false);
+    }
+
+    // serialization
+
+    // NB. the nodes are not serializable; as with
+    // PersistentPrioritySearchQueue, the entries are written instead
+    Object writeReplace() {
+        return new SerializationProxy(this);
+    }
+
+    private void readObject(ObjectInputStream in) throws InvalidObjectException {
+        throw new InvalidObjectException("SerializationProxy required");
+    }
+
+    /**
+     * The serialized form of LongLongPrioritySearchQueue: the metadata and the
+     * number of entries, followed by the keys and priorities of the entries in
+     * key order.
+     */
+    public static final class SerializationProxy implements Externalizable {
+
+        private static final long serialVersionUID = 1L;
+
+        LongLongPrioritySearchQueue psq;
+
+        public SerializationProxy() {
+        }
+
+        SerializationProxy(LongLongPrioritySearchQueue psq) {
+            this.psq = psq;
+        }
+
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeObject(psq._meta);
+            out.writeInt(psq._count);
+            for (Iterator it = psq.iterator(); it.hasNext(); ) {
+                Map.Entry e = (Map.Entry) it.next();
+                out.writeLong((Long) e.getKey());
+                out.writeLong((Long) e.getValue());
+            }
+        }
+
+        public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+            IPersistentMap meta = (IPersistentMap) in.readObject();
+            int count = in.readInt();
+            LongLongPrioritySearchQueue ret = EMPTY;
+            for (int i = 0; i < count; i++) {
+                long key = in.readLong();
+                ret = ret.assoc(key, in.readLong());
+            }
+            psq = ret.withMeta(meta);
+        }
+
+        Object readResolve() {
+            return psq;
+        }
+    }
+
+    // iterators
+
+    /**
+     * Key order iterator over the entries with keys in [low, high] and,
+     * optionally, priorities <= (or < if strict) the given bound. Keeps an
+     * explicit stack of pending subtrees in parallel arrays, skipping those
+     * outside the key range or whose winners exceed the priority bound.
+     */
+    static final class EntryIterator implements Iterator {
+
+        final boolean ascending;
+        final long low;
+        final long high;
+        final boolean hasPriority;
+        final long priority;
+        final boolean strict;
+
+        long[] keys = new long[16];
+        long[] priorities = new long[16];
+        Loser[] losers = new Loser[16];
+        int depth;
+
+        boolean hasNext;
+        long nextKey;
+        long nextPriority;
+
+        EntryIterator(Winner winner,
+                      boolean ascending,
+                      long low,
+                      long high,
+                      boolean hasPriority,
+                      long priority,
+                      boolean strict) {
+            this.ascending = ascending;
+            this.low = low;
+            this.high = high;
+            this.hasPriority = hasPriority;
+            this.priority = priority;
+            this.strict = strict;
+            if (null != winner)
+                push(winner.key, winner.priority, winner.losers);
+            advance();
+        }
+
+        void push(long key, long priority, Loser loser) {
+            if (hasPriority && (strict ? priority >= this.priority : priority > this.priority))
+                return;
+            if (depth == keys.length) {
+                keys = Arrays.copyOf(keys, depth * 2);
+                priorities = Arrays.copyOf(priorities, depth * 2);
+                losers = Arrays.copyOf(losers, depth * 2);
+            }
+            keys[depth] = key;
+            priorities[depth] = priority;
+            losers[depth] = loser;
+            depth++;
+        }
+
+        void advance() {
+            while (depth > 0) {
+                depth--;
+                long key = keys[depth];
+                long priority = priorities[depth];
+                Loser loser = losers[depth];
+                losers[depth] = null;
+                if (null == loser) {
+                    if (low <= key && key <= high) {
+                        hasNext = true;
+                        nextKey = key;
+                        nextPriority = priority;
+                        return;
+                    }
+                    continue;
+                }
+                long split = loser.split;
+                long lkey, lpriority, rkey, rpriority;
+                if (loser.key <= split) {
+                    lkey = loser.key;
+                    lpriority = loser.priority;
+                    rkey = key;
+                    rpriority = priority;
+                } else {
+                    lkey = key;
+                    lpriority = priority;
+                    rkey = loser.key;
+                    rpriority = loser.priority;
+                }
+                boolean hasLeft = low <= split;
+                boolean hasRight = split < high;
+                if (ascending) {
+                    if (hasRight)
+                        push(rkey, rpriority, loser.right);
+                    if (hasLeft)
+                        push(lkey, lpriority, loser.left);
+                } else {
+                    if (hasLeft)
+                        push(lkey, lpriority, loser.left);
+                    if (hasRight)
+                        push(rkey, rpriority, loser.right);
+                }
+            }
+            hasNext = false;
+        }
+
+        public boolean hasNext() {
+            return hasNext;
+        }
+
+        public Object next() {
+            if (!hasNext)
+                throw new NoSuchElementException();
+            MapEntry ret = new MapEntry(nextKey, nextPriority);
+            advance();
+            return ret;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Priority order iterator keeping a binary min-heap of candidate subtrees,
+     * as in PersistentPrioritySearchQueue; entries with equal priorities are
+     * taken in key order.
+     */
+    static final class PriorityIterator implements Iterator {
+
+        long[] keys = new long[16];
+        long[] priorities = new long[16];
+        Loser[] losers = new Loser[16];
+        int size;
+
+        PriorityIterator(Winner winner) {
+            if (null != winner)
+                push(winner.key, winner.priority, winner.losers);
+        }
+
+        boolean less(int i, int j) {
+            return priorities[i] < priorities[j]
+                    || (priorities[i] == priorities[j] && keys[i] < keys[j]);
+        }
+
+        void swap(int i, int j) {
+            long key = keys[i];
+            long priority = priorities[i];
+            Loser loser = losers[i];
+            keys[i] = keys[j];
+            priorities[i] = priorities[j];
+            losers[i] = losers[j];
+            keys[j] = key;
+            priorities[j] = priority;
+            losers[j] = loser;
+        }
+
+        void push(long key, long priority, Loser loser) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                priorities = Arrays.copyOf(priorities, size * 2);
+                losers = Arrays.copyOf(losers, size * 2);
+            }
+            keys[size] = key;
+            priorities[size] = priority;
+            losers[size] = loser;
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!less(i, parent))
+                    return;
+                swap(parent, i);
+                i = parent;
+            }
+        }
+
+        public boolean hasNext() {
+            return size > 0;
+        }
+
+        public Object next() {
+            if (size == 0)
+                throw new NoSuchElementException();
+            long key = keys[0];
+            long priority = priorities[0];
+            Loser loser = losers[0];
+            size--;
+            keys[0] = keys[size];
+            priorities[0] = priorities[size];
+            losers[0] = losers[size];
+            losers[size] = null;
+            int i = 0;
+            while (true) {
+                int l = 2 * i + 1;
+                if (l >= size)
+                    break;
+                int m = l + 1 < size && less(l + 1, l) ? l + 1 : l;
+                if (!less(m, i))
+                    break;
+                swap(i, m);
+                i = m;
+            }
+            while (null != loser) {
+                if (loser.key <= loser.split) {
+                    push(loser.key, loser.priority, loser.left);
+                    loser = loser.right;
+                } else {
+                    push(loser.key, loser.priority, loser.right);
+                    loser = loser.left;
+                }
+            }
+            return new MapEntry(key, priority);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
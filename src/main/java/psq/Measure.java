@@ -0,0 +1,19 @@
+package psq;
+
+/**
+ * A commutative monoid over the entries of a PSQ, whose value for each
+ * subtree is cached in its branch nodes, see
+ * PersistentPrioritySearchQueue.withMeasure and measureRange.
+ *
+ * combine must be associative and commutative (the entries of a subtree are
+ * not combined in key order) and identity must be its identity element.
+ */
+
+public interface Measure {
+
+    Object identity();
+
+    Object measure(Object key, Object priority);
+
+    Object combine(Object x, Object y);
+}
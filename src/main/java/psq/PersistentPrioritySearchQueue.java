@@ -4,10 +4,18 @@ import clojure.lang.AFn;
 import clojure.lang.APersistentMap;
 import clojure.lang.Box;
 import clojure.lang.Cons;
+import clojure.lang.IDeref;
+import clojure.lang.IEditableCollection;
+import clojure.lang.IFn;
+import clojure.lang.IKVReduce;
 import clojure.lang.Indexed;
 import clojure.lang.IObj;
 import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentVector;
+import clojure.lang.IReduceInit;
 import clojure.lang.ISeq;
+import clojure.lang.ITransientMap;
+import clojure.lang.Keyword;
 import clojure.lang.LazySeq;
 import clojure.lang.MapEntry;
 import clojure.lang.PersistentList;
@@ -15,10 +23,30 @@ import clojure.lang.PersistentVector;
 import clojure.lang.Reversible;
 import clojure.lang.RT;
 import clojure.lang.Sorted;
-
+import clojure.lang.Util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Persistent Priority Search Queues implemented using Ralf Hinze's priority
@@ -28,68 +56,77 @@ import java.util.Map;
 
 public final class PersistentPrioritySearchQueue
         extends APersistentMap
-        implements Indexed, IObj, IPrioritySearchQueue, Reversible, Sorted {
+        implements IEditableCollection, IKVReduce, Indexed, IObj,
+                   IPrioritySearchQueue, IReduceInit, Reversible, Sorted {
 
     static public final PersistentPrioritySearchQueue EMPTY =
             new PersistentPrioritySearchQueue();
 
-    public final Winner winner;
+    // NB. the root winner is stored inline rather than as a Winner; wlosers
+    // and the other fields below are null in empty PSQs
+    final Object wkey;
+    final Object wpriority;
+    final Loser wlosers;
+    final Object wubound;
 
     public final Comparator kcomp;
     public final Comparator pcomp;
 
+    // null unless set by withMeasure
+    public final Measure measure;
+
     final int _count;
     final IPersistentMap _meta;
 
     static public IPersistentMap create(Map other) {
-        IPersistentMap ret = EMPTY;
+        ITransientMap ret = EMPTY.asTransient();
         for (Object o : other.entrySet()) {
             Map.Entry e = (Entry) o;
             ret = ret.assoc(e.getKey(), e.getValue());
         }
-        return ret;
+        return ret.persistent();
     }
 
     static public PersistentPrioritySearchQueue create(Object... init) {
-        IPersistentMap ret = EMPTY;
+        ITransientMap ret = EMPTY.asTransient();
         for (int i = 0; i < init.length; i += 2) {
             ret = ret.assoc(init[i], init[i+1]);
         }
-        return (PersistentPrioritySearchQueue) ret;
+        return (PersistentPrioritySearchQueue) ret.persistent();
     }
 
     static public PersistentPrioritySearchQueue create(IPersistentMap meta,
                                                        Object... init) {
-        IPersistentMap ret = (IPersistentMap) EMPTY.withMeta(meta);
+        ITransientMap ret = EMPTY.withMeta(meta).asTransient();
         for (int i = 0; i < init.length; i += 2) {
             ret = ret.assoc(init[i], init[i+1]);
         }
-        return (PersistentPrioritySearchQueue) ret;
+        return (PersistentPrioritySearchQueue) ret.persistent();
     }
 
     static public PersistentPrioritySearchQueue create(Comparator kcomp,
                                                        Comparator pcomp,
                                                        Object... init) {
-        IPersistentMap ret = new PersistentPrioritySearchQueue(kcomp, pcomp);
+        ITransientMap ret = new PersistentPrioritySearchQueue(kcomp, pcomp).asTransient();
         for (int i = 0; i < init.length; i += 2) {
             ret = ret.assoc(init[i], init[i+1]);
         }
-        return (PersistentPrioritySearchQueue) ret;
+        return (PersistentPrioritySearchQueue) ret.persistent();
     }
 
     static public PersistentPrioritySearchQueue create(Comparator kcomp,
                                                        Comparator pcomp,
                                                        IPersistentMap meta,
                                                        Object... init) {
-        IPersistentMap ret = new PersistentPrioritySearchQueue(kcomp, pcomp, meta);
+        ITransientMap ret = new PersistentPrioritySearchQueue(kcomp, pcomp, meta).asTransient();
         for (int i = 0; i < init.length; i += 2) {
             ret = ret.assoc(init[i], init[i+1]);
         }
-        return (PersistentPrioritySearchQueue) ret;
+        return (PersistentPrioritySearchQueue) ret.persistent();
     }
 
     static public PersistentPrioritySearchQueue create(ISeq items) {
-        IPersistentMap ret = EMPTY;
+        ITransientMap ret = EMPTY.asTransient();
         for (; items != null; items = items.next().next()) {
             if (items.next() == null)
                 throw new IllegalArgumentException(
@@ -97,13 +134,13 @@ public final class PersistentPrioritySearchQueue
                 );
             ret = ret.assoc(items.first(), RT.second(items));
         }
-        return (PersistentPrioritySearchQueue) ret;
+        return (PersistentPrioritySearchQueue) ret.persistent();
     }
 
     static public PersistentPrioritySearchQueue create(Comparator kcomp,
                                                        Comparator pcomp,
                                                        ISeq items) {
-        IPersistentMap ret = new PersistentPrioritySearchQueue(kcomp, pcomp);
+        ITransientMap ret = new PersistentPrioritySearchQueue(kcomp, pcomp).asTransient();
         for (; items != null; items = items.next().next()) {
             if (items.next() == null)
                 throw new IllegalArgumentException(
@@ -111,7 +148,24 @@ public final class PersistentPrioritySearchQueue
                 );
             ret = ret.assoc(items.first(), RT.second(items));
         }
-        return (PersistentPrioritySearchQueue) ret;
+        return (PersistentPrioritySearchQueue) ret.persistent();
+    }
+
+    static public PersistentPrioritySearchQueue createFromSorted(ISeq entries) {
+        return EMPTY.fromSorted(entries, true);
+    }
+
+    /**
+     * Builds a PSQ from a seq of map entries (or doubleton vectors) sorted in
+     * ascending key order in linear time. If checkSorted is true, the key
+     * order is verified (in which case entries with equal keys are handled as
+     * if by repeated uses of assoc); otherwise it is trusted.
+     */
+    static public PersistentPrioritySearchQueue createFromSorted(Comparator kcomp,
+                                                                 Comparator pcomp,
+                                                                 ISeq entries,
+                                                                 boolean checkSorted) {
+        return new PersistentPrioritySearchQueue(kcomp, pcomp).fromSorted(entries, checkSorted);
     }
 
     PersistentPrioritySearchQueue() {
@@ -125,9 +179,20 @@ public final class PersistentPrioritySearchQueue
     PersistentPrioritySearchQueue(Comparator kcomp,
                                   Comparator pcomp,
                                   IPersistentMap meta) {
-        this.winner = null;
+        this(kcomp, pcomp, null, meta);
+    }
+
+    PersistentPrioritySearchQueue(Comparator kcomp,
+                                  Comparator pcomp,
+                                  Measure measure,
+                                  IPersistentMap meta) {
+        this.wkey = null;
+        this.wpriority = null;
+        this.wlosers = null;
+        this.wubound = null;
         this.kcomp = kcomp;
         this.pcomp = pcomp;
+        this.measure = measure;
         this._meta = meta;
         this._count = 0;
     }
@@ -135,15 +200,82 @@ public final class PersistentPrioritySearchQueue
     PersistentPrioritySearchQueue(Winner winner,
                                   Comparator kcomp,
                                   Comparator pcomp,
+                                  Measure measure,
+                                  int count,
+                                  IPersistentMap meta) {
+        if (null == winner) {
+            this.wkey = null;
+            this.wpriority = null;
+            this.wlosers = null;
+            this.wubound = null;
+        } else {
+            this.wkey = winner.key;
+            this.wpriority = winner.priority;
+            this.wlosers = winner.losers;
+            this.wubound = winner.ubound;
+        }
+        this.kcomp = kcomp;
+        this.pcomp = pcomp;
+        this.measure = measure;
+        this._meta = meta;
+        this._count = count;
+    }
+
+    // takes the winner from the left side of mf
+    PersistentPrioritySearchQueue(MatchFrame mf,
+                                  Comparator kcomp,
+                                  Comparator pcomp,
+                                  Measure measure,
                                   int count,
                                   IPersistentMap meta) {
-        this.winner = winner;
+        if (mf.hasLeft) {
+            this.wkey = mf.lkey;
+            this.wpriority = mf.lpriority;
+            this.wlosers = mf.llosers;
+            this.wubound = mf.lubound;
+        } else {
+            this.wkey = null;
+            this.wpriority = null;
+            this.wlosers = null;
+            this.wubound = null;
+        }
         this.kcomp = kcomp;
         this.pcomp = pcomp;
+        this.measure = measure;
         this._meta = meta;
         this._count = count;
     }
 
+    PersistentPrioritySearchQueue(PersistentPrioritySearchQueue psq, IPersistentMap meta) {
+        this.wkey = psq.wkey;
+        this.wpriority = psq.wpriority;
+        this.wlosers = psq.wlosers;
+        this.wubound = psq.wubound;
+        this.kcomp = psq.kcomp;
+        this.pcomp = psq.pcomp;
+        this.measure = psq.measure;
+        this._meta = meta;
+        this._count = psq._count;
+    }
+
+    // a MatchFrame holding the root on its left side, if any
+    MatchFrame matchFrame() {
+        MatchFrame mf = new MatchFrame();
+        if (0 != _count)
+            mf.setLeft(wkey, wpriority, wlosers, wubound);
+        return mf;
+    }
+
+    /**
+     * Returns the root of the tournament tree as a (new) Winner, or null if
+     * this PSQ is empty.
+     */
+    public Winner winner() {
+        if (0 == _count)
+            return null;
+        return new Winner(wkey, wpriority, wlosers, wubound);
+    }
+
     public static final class Winner {
 
         public final Object key;
@@ -160,23 +292,96 @@ public final class PersistentPrioritySearchQueue
 
     }
 
-    public static final class Loser {
+    /**
+     * A loser without children, about half of all losers. Losers with
+     * children are Branches. Nodes are read through the accessor methods;
+     * their fields are mutated in place by transient operations, so they are
+     * not exposed outside this package.
+     */
+    public static class Loser {
 
-        public final Object key;
-        public final Object priority;
-        public final Loser left;
-        public final Object split;
-        public final Loser right;
-        public final int size;
+        // NB. only ever mutated in Branches, see Branch.edit
+        Object key;
+        Object priority;
+        Object split;
 
-        Loser(Object key, Object priority, Loser left, Object split, Loser right, int size) {
+        Loser(Object key, Object priority, Object split) {
             this.key = key;
             this.priority = priority;
-            this.left = left;
             this.split = split;
+        }
+
+        public Object key() {
+            return key;
+        }
+
+        public Object priority() {
+            return priority;
+        }
+
+        public Object split() {
+            return split;
+        }
+
+        public Loser left() {
+            return null;
+        }
+
+        public Loser right() {
+            return null;
+        }
+
+        public int size() {
+            return 1;
+        }
+    }
+
+    public static class Branch extends Loser {
+
+        // NB. the fields of a Branch are only ever mutated by the transient
+        // operations of the thread owning edit; leaves are not editable, as
+        // they are cheap to reallocate and outnumber Branches
+        final AtomicReference<Thread> edit;
+        Loser left;
+        Loser right;
+        int size;
+
+        Branch(AtomicReference<Thread> edit,
+               Object key, Object priority, Loser left, Object split, Loser right, int size) {
+            super(key, priority, split);
+            this.edit = edit;
+            this.left = left;
             this.right = right;
             this.size = size;
         }
+
+        public Loser left() {
+            return left;
+        }
+
+        public Loser right() {
+            return right;
+        }
+
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * A Branch in a PSQ with a Measure, caching the measure of the entries of
+     * its subtree. Leaves are measured on demand.
+     */
+    public static final class MeasuredBranch extends Branch {
+
+        Object measure;
+
+        MeasuredBranch(AtomicReference<Thread> edit,
+                       Object key, Object priority, Loser left, Object split, Loser right, int size,
+                       Object measure) {
+            super(edit, key, priority, left, split, right, size);
+            this.measure = measure;
+        }
     }
 
     public static final class Match {
@@ -209,10 +414,18 @@ public final class PersistentPrioritySearchQueue
         public Loser rlosers;
         public Object rubound;
         public boolean found;
+        final AtomicReference<Thread> edit;
 
-        MatchFrame() {}
+        MatchFrame() {
+            this.edit = null;
+        }
+
+        MatchFrame(AtomicReference<Thread> edit) {
+            this.edit = edit;
+        }
 
         MatchFrame(Winner winner) {
+            this.edit = null;
             hasLeft = true;
             lkey = winner.key;
             lpriority = winner.priority;
@@ -279,107 +492,156 @@ public final class PersistentPrioritySearchQueue
     static int size(Loser loser) {
         if (null == loser)
             return 0;
-        return loser.size;
-    }
-
-    static Loser loser(Object key, Object priority, Loser left, Object split, Loser right) {
-        return new Loser(key, priority, left, split, right, 1 + size(left) + size(right));
+        return loser.size();
+    }
+
+    Loser loser(Object key, Object priority, Loser left, Object split, Loser right) {
+        return loser(null, null, key, priority, left, split, right);
+    }
+
+    // NB. with a non-null edit, a Branch node is reused in place for a
+    // Branch if owned by edit; nodes owned by edit were created by this
+    // method with the same measure, so they are MeasuredBranches iff measure
+    // is non-null. Leaves are always allocated afresh
+    Loser loser(AtomicReference<Thread> edit, Loser node,
+                Object key, Object priority, Loser left, Object split, Loser right) {
+        if (null == left && null == right)
+            return new Loser(key, priority, split);
+        if (null != edit && node instanceof Branch && edit == ((Branch) node).edit) {
+            Branch branch = (Branch) node;
+            branch.key = key;
+            branch.priority = priority;
+            branch.split = split;
+            branch.left = left;
+            branch.right = right;
+            branch.size = 1 + size(left) + size(right);
+            if (null != measure)
+                ((MeasuredBranch) branch).measure = measure(key, priority, left, right);
+            return branch;
+        }
+        if (null != measure)
+            return new MeasuredBranch(
+                    edit, key, priority, left, split, right, 1 + size(left) + size(right),
+                    measure(key, priority, left, right)
+            );
+        return new Branch(edit, key, priority, left, split, right, 1 + size(left) + size(right));
     }
 
     static int omega(int size) {
         return 4 * size;
     }
 
-    Loser singleLeft(Object key, Object priority, Loser left, Object split, Loser right) {
+    Loser singleLeft(AtomicReference<Thread> edit, Loser node,
+                     Object key, Object priority, Loser left, Object split, Loser right) {
         Object rkey = right.key;
         Object rpriority = right.priority;
-        Loser rleft = right.left;
+        Loser rleft = right.left();
         Object rsplit = right.split;
-        Loser rright = right.right;
-        if (kcomp.compare(rkey, rsplit) <= 0
-                && pcomp.compare(priority, rpriority) <= 0)
+        Loser rright = right.right();
+        if (compareWith(kcomp, rkey, rsplit) <= 0
+                && compareWith(pcomp, priority, rpriority) <= 0)
             return loser(
+                    edit, node,
                     key,
                     priority,
-                    loser(rkey, rpriority, left, split, rleft),
+                    loser(edit, right, rkey, rpriority, left, split, rleft),
                     rsplit,
                     rright
             );
         return loser(
+                edit, node,
                 rkey,
                 rpriority,
-                loser(key, priority, left, split, rleft),
+                loser(edit, right, key, priority, left, split, rleft),
                 rsplit,
                 rright
         );
     }
 
-    Loser singleRight(Object key, Object priority, Loser left, Object split, Loser right) {
+    Loser singleRight(AtomicReference<Thread> edit, Loser node,
+                      Object key, Object priority, Loser left, Object split, Loser right) {
         Object lkey = left.key;
         Object lpriority = left.priority;
-        Loser lleft = left.left;
+        Loser lleft = left.left();
         Object lsplit = left.split;
-        Loser lright = left.right;
-        if (kcomp.compare(lkey, lsplit) > 0
-                && pcomp.compare(priority, lpriority) <= 0)
+        Loser lright = left.right();
+        if (compareWith(kcomp, lkey, lsplit) > 0
+                && compareWith(pcomp, priority, lpriority) <= 0)
             return loser(
+                    edit, node,
                     key,
                     priority,
                     lleft,
                     lsplit,
-                    loser(lkey, lpriority, lright, split, right)
+                    loser(edit, left, lkey, lpriority, lright, split, right)
             );
         return loser(
+                edit, node,
                 lkey,
                 lpriority,
                 lleft,
                 lsplit,
-                loser(key, priority, lright, split, right)
+                loser(edit, left, key, priority, lright, split, right)
         );
     }
 
-    Loser doubleLeft(Object key, Object priority, Loser left, Object split, Loser right) {
+    Loser doubleLeft(AtomicReference<Thread> edit, Loser node,
+                     Object key, Object priority, Loser left, Object split, Loser right) {
         return singleLeft(
+                edit, node,
                 key, priority, left, split,
-                singleRight(right.key, right.priority, right.left, right.split, right.right)
+                singleRight(edit, right,
+                            right.key, right.priority, right.left(), right.split, right.right())
         );
     }
 
-    Loser doubleRight(Object key, Object priority, Loser left, Object split, Loser right) {
+    Loser doubleRight(AtomicReference<Thread> edit, Loser node,
+                      Object key, Object priority, Loser left, Object split, Loser right) {
         return singleRight(
+                edit, node,
                 key, priority,
-                singleLeft(left.key, left.priority, left.left, left.split, left.right),
+                singleLeft(edit, left,
+                           left.key, left.priority, left.left(), left.split, left.right()),
                 split, right
         );
     }
 
-    Loser balanceLeft(Object key, Object priority, Loser left, Object split, Loser right) {
-        Loser rl = right.left;
-        Loser rr = right.right;
+    Loser balanceLeft(AtomicReference<Thread> edit, Loser node,
+                      Object key, Object priority, Loser left, Object split, Loser right) {
+        Loser rl = right.left();
+        Loser rr = right.right();
         if (size(rl) < size(rr))
-            return singleLeft(key, priority, left, split, right);
-        return doubleLeft(key, priority, left, split, right);
+            return singleLeft(edit, node, key, priority, left, split, right);
+        return doubleLeft(edit, node, key, priority, left, split, right);
     }
 
-    Loser balanceRight(Object key, Object priority, Loser left, Object split, Loser right) {
-        Loser ll = left.left;
-        Loser lr = left.right;
+    Loser balanceRight(AtomicReference<Thread> edit, Loser node,
+                       Object key, Object priority, Loser left, Object split, Loser right) {
+        Loser ll = left.left();
+        Loser lr = left.right();
         if (size(lr) < size(ll))
-            return singleRight(key, priority, left, split, right);
-        return doubleRight(key, priority, left, split, right);
+            return singleRight(edit, node, key, priority, left, split, right);
+        return doubleRight(edit, node, key, priority, left, split, right);
     }
 
     Loser balance(Object key, Object priority, Loser left, Object split, Loser right) {
+        return balance(null, null, key, priority, left, split, right);
+    }
+
+    // NB. with a non-null edit, node (if owned by edit) and the children of
+    // the nodes being rotated (if owned by edit) are reused in place
+    Loser balance(AtomicReference<Thread> edit, Loser node,
+                  Object key, Object priority, Loser left, Object split, Loser right) {
         int sl = size(left);
         int sr = size(right);
 
         if (sl + sr < 2)
-            return loser(key, priority, left, split, right);
+            return loser(edit, node, key, priority, left, split, right);
         if (sr > omega(sl))
-            return balanceLeft(key, priority, left, split, right);
+            return balanceLeft(edit, node, key, priority, left, split, right);
         if (sl > omega(sr))
-            return balanceRight(key, priority, left, split, right);
-        return loser(key, priority, left, split, right);
+            return balanceRight(edit, node, key, priority, left, split, right);
+        return loser(edit, node, key, priority, left, split, right);
     }
 
     // main ops
@@ -393,7 +655,7 @@ public final class PersistentPrioritySearchQueue
         Object lp = left.priority;
         Object rp = right.priority;
 
-        if (pcomp.compare(lp, rp) <= 0)
+        if (compareWith(pcomp, lp, rp) <= 0)
             return new Winner(
                     left.key,
                     lp,
@@ -421,6 +683,10 @@ public final class PersistentPrioritySearchQueue
     }
 
     void play(MatchFrame mf) {
+        play(mf, null);
+    }
+
+    void play(MatchFrame mf, Loser node) {
         if (!mf.hasLeft) {
             if (!mf.hasRight)
                 return;
@@ -438,11 +704,13 @@ public final class PersistentPrioritySearchQueue
         Loser rlosers = mf.rlosers;
         Object rubound = mf.rubound;
 
-        if (pcomp.compare(lpriority, rpriority) <= 0) {
+        if (compareWith(pcomp, lpriority, rpriority) <= 0) {
             mf.setLeft(
                     lkey,
                     lpriority,
                     balance(
+                            mf.edit,
+                            node,
                             rkey,
                             rpriority,
                             llosers,
@@ -456,6 +724,8 @@ public final class PersistentPrioritySearchQueue
                     rkey,
                     rpriority,
                     balance(
+                            mf.edit,
+                            node,
                             lkey,
                             lpriority,
                             llosers,
@@ -481,10 +751,10 @@ public final class PersistentPrioritySearchQueue
         Object wubound = winner.ubound;
         Object lkey = losers.key;
         Object lpriority = losers.priority;
-        Loser lleft = losers.left;
+        Loser lleft = losers.left();
         Object lsplit = losers.split;
-        Loser lright = losers.right;
-        if (kcomp.compare(lkey, lsplit) <= 0)
+        Loser lright = losers.right();
+        if (compareWith(kcomp, lkey, lsplit) <= 0)
             return new Match(
                     new Winner(lkey, lpriority, lleft, lsplit),
                     new Winner(wkey, wpriority, lright, wubound)
@@ -508,16 +778,16 @@ public final class PersistentPrioritySearchQueue
         Object wubound = mf.lubound;
         Object lkey = losers.key;
         Object lpriority = losers.priority;
-        Loser lleft = losers.left;
+        Loser lleft = losers.left();
         Object lsplit = losers.split;
-        Loser lright = losers.right;
+        Loser lright = losers.right();
         mf.hasLeft = true;
         mf.hasRight = true;
         mf.llosers = lleft;
         mf.lubound = lsplit;
         mf.rlosers = lright;
         mf.rubound = wubound;
-        if (kcomp.compare(lkey, lsplit) <= 0) {
+        if (compareWith(kcomp, lkey, lsplit) <= 0) {
             mf.lkey = lkey;
             mf.lpriority = lpriority;
             mf.rkey = wkey;
@@ -542,10 +812,10 @@ public final class PersistentPrioritySearchQueue
 
         Object key = losers.key;
         Object priority = losers.priority;
-        Loser left = losers.left;
+        Loser left = losers.left();
         Object split = losers.split;
-        Loser right = losers.right;
-        if (kcomp.compare(key, split) <= 0) {
+        Loser right = losers.right();
+        if (compareWith(kcomp, key, split) <= 0) {
             secondBest(right, ubound, mf);
             mf.unshift();
             mf.setLeft(key, priority, left, split);
@@ -553,38 +823,95 @@ public final class PersistentPrioritySearchQueue
             secondBest(left, split, mf);
             mf.setRight(key, priority, right, ubound);
         }
-        play(mf);
+        play(mf, losers);
     }
 
     public ISeq prioritySeq() {
         if (0 == _count)
             return null;
-
-        return new Cons(
-                new MapEntry(winner.key, winner.priority),
-                prioritySeq(_count - 1, winner.losers, winner.ubound)
-        );
+        return RT.seq(RT.chunkIteratorSeq(priorityIterator()));
     }
 
-    ISeq prioritySeq(final int countdown, final Loser losers, final Object ubound) {
-        if (0 == countdown)
-            return null;
+    public Iterator priorityIterator() {
+        return new PriorityIterator(kcomp, pcomp, winner());
+    }
 
-        return new LazySeq(
-                new AFn() {
-                    public Object invoke() {
-                        MatchFrame mf = new MatchFrame();
-                        secondBest(losers, ubound, mf);
-                        Object lkey = mf.lkey;
-                        Object lpriority = mf.lpriority;
-                        Loser llosers = mf.llosers;
-                        Object lubound = mf.lubound;
-                        return new Cons(
-                                new MapEntry(lkey, lpriority),
-                                prioritySeq(countdown - 1, llosers, lubound)
-                        );
-                    }
+    public Object priorityReduce(IFn f, Object init) {
+        Object acc = init;
+        for (Iterator it = priorityIterator(); it.hasNext(); ) {
+            acc = f.invoke(acc, it.next());
+            if (RT.isReduced(acc))
+                return ((IDeref) acc).deref();
+        }
+        return acc;
+    }
+
+    // bulk construction
+
+    PersistentPrioritySearchQueue fromSorted(ISeq entries, boolean checkSorted) {
+        int n = 0;
+        Object[] keys = new Object[16];
+        Object[] priorities = new Object[16];
+        for (ISeq s = RT.seq(entries); s != null; s = s.next()) {
+            Object o = s.first();
+            Object k, p;
+            if (o instanceof Map.Entry) {
+                Map.Entry e = (Map.Entry) o;
+                k = e.getKey();
+                p = e.getValue();
+            } else {
+                IPersistentVector v = (IPersistentVector) o;
+                if (v.count() != 2)
+                    throw new IllegalArgumentException(
+                            "Vector arg to map conj must be a pair"
+                    );
+                k = v.nth(0);
+                p = v.nth(1);
+            }
+            if (checkSorted && n > 0) {
+                int c = compareWith(kcomp, keys[n - 1], k);
+                if (c > 0)
+                    throw new IllegalArgumentException(
+                            String.format("Keys not in ascending order: %s, %s", keys[n - 1], k)
+                    );
+                if (c == 0) {
+                    priorities[n - 1] = p;
+                    continue;
                 }
+            }
+            if (n == keys.length) {
+                keys = Arrays.copyOf(keys, n * 2);
+                priorities = Arrays.copyOf(priorities, n * 2);
+            }
+            keys[n] = k;
+            priorities[n] = p;
+            n++;
+        }
+        return fromSorted(keys, priorities, n);
+    }
+
+    PersistentPrioritySearchQueue fromSorted(Object[] keys, Object[] priorities, int n) {
+        if (0 == n)
+            return empty();
+        return new PersistentPrioritySearchQueue(
+                build(keys, priorities, 0, n),
+                kcomp,
+                pcomp,
+                measure,
+                n,
+                _meta
+        );
+    }
+
+    // NB. the halves passed to play differ in size by at most one, so balance
+    // never needs to rotate and the whole build takes O(n) time
+    Winner build(Object[] keys, Object[] priorities, int from, int to) {
+        if (to - from == 1)
+            return new Winner(keys[from], priorities[from], null, keys[from]);
+        int mid = (from + to) >>> 1;
+        return play(
+                build(keys, priorities, from, mid),
+                build(keys, priorities, mid, to)
         );
     }
 
@@ -592,7 +919,7 @@ public final class PersistentPrioritySearchQueue
         if (null == winner)
             return null;
         if (null == winner.losers) {
-            if (0 == kcomp.compare(key, winner.key)) {
+            if (0 == compareWith(kcomp, key, winner.key)) {
                 found.val = found;
                 return null;
             } else {
@@ -601,7 +928,7 @@ public final class PersistentPrioritySearchQueue
         }
         Match match = unplay(winner);
         Object lubound = match.left.ubound;
-        int c = kcomp.compare(key, lubound);
+        int c = compareWith(kcomp, key, lubound);
         Winner sub = delete(key, c <= 0 ? match.left : match.right, found);
         if (null == found.val)
             return winner;
@@ -617,7 +944,7 @@ public final class PersistentPrioritySearchQueue
         if (null == winner.losers) {
             Winner newWinner = new Winner(key, priority, null, key);
             Object wkey = winner.key;
-            int c = kcomp.compare(key, wkey);
+            int c = compareWith(kcomp, key, wkey);
             if (c < 0)
                 return play(newWinner, winner);
             if (c == 0) {
@@ -629,7 +956,7 @@ public final class PersistentPrioritySearchQueue
 
         Match match = unplay(winner);
         Object lubound = match.left.ubound;
-        if (kcomp.compare(key, lubound) <= 0)
+        if (compareWith(kcomp, key, lubound) <= 0)
             return play(
                     insert(key, priority, match.left, found),
                     match.right
@@ -652,7 +979,7 @@ public final class PersistentPrioritySearchQueue
     void insert(Object key, Object priority, MatchFrame mf) {
         if (null == mf.llosers) {
             Object wkey = mf.lkey;
-            int c = kcomp.compare(key, wkey);
+            int c = compareWith(kcomp, key, wkey);
             if (0 == c) {
                 mf.found = true;
                 mf.setLeft(key, priority, null, key);
@@ -667,6 +994,7 @@ public final class PersistentPrioritySearchQueue
             return;
         }
 
+        Loser node = mf.llosers;
         unplay(mf);
         Object lkey = mf.lkey;
         Object lpriority = mf.lpriority;
@@ -676,7 +1004,7 @@ public final class PersistentPrioritySearchQueue
         Object rpriority = mf.rpriority;
         Loser rlosers = mf.rlosers;
         Object rubound = mf.rubound;
-        if (kcomp.compare(key, lubound) <= 0) {
+        if (compareWith(kcomp, key, lubound) <= 0) {
             mf.clearRight();
             insert(key, priority, mf);
             mf.setRight(rkey, rpriority, rlosers, rubound);
@@ -686,266 +1014,422 @@ public final class PersistentPrioritySearchQueue
             mf.unshift();
             mf.setLeft(lkey, lpriority, llosers, lubound);
         }
-        play(mf);
+        play(mf, node);
+    }
+
+    void delete(Object key, MatchFrame mf) {
+        if (null == mf.llosers) {
+            if (0 == compareWith(kcomp, key, mf.lkey)) {
+                mf.found = true;
+                mf.clearLeft();
+            }
+            return;
+        }
+
+        Loser node = mf.llosers;
+        unplay(mf);
+        Object lkey = mf.lkey;
+        Object lpriority = mf.lpriority;
+        Loser llosers = mf.llosers;
+        Object lubound = mf.lubound;
+        Object rkey = mf.rkey;
+        Object rpriority = mf.rpriority;
+        Loser rlosers = mf.rlosers;
+        Object rubound = mf.rubound;
+        if (compareWith(kcomp, key, lubound) <= 0) {
+            mf.clearRight();
+            delete(key, mf);
+            mf.setRight(rkey, rpriority, rlosers, rubound);
+        } else {
+            mf.shift();
+            delete(key, mf);
+            mf.unshift();
+            mf.setLeft(lkey, lpriority, llosers, lubound);
+        }
+        play(mf, node);
+    }
+
+    // NB. the shape of the tree does not depend on priorities, so replay
+    // rebuilds the path with loser where play would call balance
+    void replay(MatchFrame mf, Loser node) {
+        Object lkey = mf.lkey;
+        Object lpriority = mf.lpriority;
+        Loser llosers = mf.llosers;
+        Object lubound = mf.lubound;
+        Object rkey = mf.rkey;
+        Object rpriority = mf.rpriority;
+        Loser rlosers = mf.rlosers;
+        Object rubound = mf.rubound;
+
+        if (compareWith(pcomp, lpriority, rpriority) <= 0) {
+            mf.setLeft(
+                    lkey,
+                    lpriority,
+                    loser(mf.edit, node, rkey, rpriority, llosers, lubound, rlosers),
+                    rubound
+            );
+        } else {
+            mf.setLeft(
+                    rkey,
+                    rpriority,
+                    loser(mf.edit, node, lkey, lpriority, llosers, lubound, rlosers),
+                    rubound
+            );
+        }
+        mf.clearRight();
+    }
+
+    // replaces the priority of key with (f priority), or with priority if f
+    // is null; sets mf.found if key is present
+    void adjust(Object key, IFn f, Object priority, MatchFrame mf) {
+        if (null == mf.llosers) {
+            if (0 == compareWith(kcomp, key, mf.lkey)) {
+                mf.found = true;
+                mf.lpriority = null == f ? priority : f.invoke(mf.lpriority);
+            }
+            return;
+        }
+
+        Loser node = mf.llosers;
+        unplay(mf);
+        Object lkey = mf.lkey;
+        Object lpriority = mf.lpriority;
+        Loser llosers = mf.llosers;
+        Object lubound = mf.lubound;
+        Object rkey = mf.rkey;
+        Object rpriority = mf.rpriority;
+        Loser rlosers = mf.rlosers;
+        Object rubound = mf.rubound;
+        if (compareWith(kcomp, key, lubound) <= 0) {
+            mf.clearRight();
+            adjust(key, f, priority, mf);
+            if (!mf.found)
+                return;
+            mf.setRight(rkey, rpriority, rlosers, rubound);
+        } else {
+            mf.shift();
+            adjust(key, f, priority, mf);
+            if (!mf.found)
+                return;
+            mf.unshift();
+            mf.setLeft(lkey, lpriority, llosers, lubound);
+        }
+        replay(mf, node);
+    }
+
+    MapEntry lookup(Object key) {
+        if (0 == _count)
+            return null;
+        return lookup(key, wkey, wpriority, wlosers);
     }
 
     MapEntry lookup(Object key, Winner winner) {
         if (null == winner)
             return null;
+        return lookup(key, winner.key, winner.priority, winner.losers);
+    }
 
-        if (0 == kcomp.compare(key, winner.key))
-            return new MapEntry(winner.key, winner.priority);
+    MapEntry lookup(Object key, Object wkey, Object wpriority, Loser losers) {
+        if (0 == compareWith(kcomp, key, wkey))
+            return new MapEntry(wkey, wpriority);
 
-        Loser losers = winner.losers;
         while (null != losers) {
-            if (0 == kcomp.compare(key, losers.key))
+            if (0 == compareWith(kcomp, key, losers.key))
                 return new MapEntry(losers.key, losers.priority);
-            if (0 < kcomp.compare(key, losers.split)) {
-                losers = losers.right;
+            if (0 < compareWith(kcomp, key, losers.split)) {
+                losers = losers.right();
                 continue;
             }
-            losers = losers.left;
+            losers = losers.left();
         }
         return null;
     }
 
     public MapEntry nearestLeft(Object key, boolean inclusive) {
-        if (null == winner)
+        if (0 == _count)
             return null;
 
-        int topc = kcomp.compare(key, winner.ubound);
+        int topc = compareWith(kcomp, key, wubound);
         if (0 == topc) {
             if (inclusive)
-                return lookup(key, winner);
-            Loser loser = winner.losers;
+                return lookup(key);
+            Loser loser = wlosers;
             if (null == loser) {
                 return null;
             }
-            while (null != loser.right) {
-                loser = loser.right;
+            while (null != loser.right()) {
+                loser = loser.right();
             }
-            return lookup(loser.split, winner);
+            return lookup(loser.split);
         } else if (topc > 0) {
-            return lookup(winner.ubound, winner);
+            return lookup(wubound);
         }
 
         Loser prev = null;
-        Loser loser = winner.losers;
+        Loser loser = wlosers;
         while (null != loser) {
-            int c = kcomp.compare(key, loser.split);
+            int c = compareWith(kcomp, key, loser.split);
             if (0 == c) {
                 if (inclusive)
-                    return lookup(key, winner);
-                loser = loser.left;
+                    return lookup(key);
+                loser = loser.left();
             } else if (c < 0) {
-                loser = loser.left;
+                loser = loser.left();
             } else {
                 prev = loser;
-                loser = loser.right;
+                loser = loser.right();
             }
         }
         if (null == prev)
             return null;
-        return lookup(prev.split, winner);
+        return lookup(prev.split);
     }
 
     public MapEntry nearestRight(Object key, boolean inclusive) {
-        if (null == winner)
+        if (0 == _count)
             return null;
 
-        int topc = kcomp.compare(key, winner.ubound);
+        int topc = compareWith(kcomp, key, wubound);
         if (0 == topc) {
             if (inclusive)
-                return lookup(key, winner);
+                return lookup(key);
             return null;
         } else if (topc > 0) {
             return null;
         }
 
-        Object prevSplit = winner.ubound;
-        Loser loser = winner.losers;
+        Object prevSplit = wubound;
+        Loser loser = wlosers;
         while (null != loser) {
-            int c = kcomp.compare(key, loser.split);
+            int c = compareWith(kcomp, key, loser.split);
             if (0 == c) {
                 if (inclusive)
-                    return lookup(key, winner);
-                loser = loser.right;
+                    return lookup(key);
+                loser = loser.right();
             } else if (c > 0) {
-                loser = loser.right;
+                loser = loser.right();
             } else {
                 prevSplit = loser.split;
-                loser = loser.left;
+                loser = loser.left();
             }
         }
-        return lookup(prevSplit, winner);
+        return lookup(prevSplit);
+    }
+
+    // freezing
+
+    /**
+     * Returns a read-only copy of this PSQ packed into arrays, see
+     * FrozenPrioritySearchQueue. Takes O(n) time.
+     */
+    public FrozenPrioritySearchQueue freeze() {
+        Object[] keys = new Object[_count];
+        Object[] priorities = new Object[_count];
+        int i = 0;
+        for (Iterator it = iterator(); it.hasNext(); i++) {
+            MapEntry e = (MapEntry) it.next();
+            keys[i] = e.key();
+            priorities[i] = e.val();
+        }
+        return new FrozenPrioritySearchQueue(keys, priorities, kcomp, pcomp, _meta);
     }
 
-    ISeq traverse(final Object key, final Object priority, Loser losers) {
-        if (null == losers)
-            return RT.list(new MapEntry(key, priority));
-        final Object lkey = losers.key;
-        final Object lpriority = losers.priority;
-        final Loser lleft = losers.left;
-        final Loser lright = losers.right;
-        if (kcomp.compare(lkey, losers.split) <= 0)
-            return concat(
-                    new LazySeq(new AFn() {
-                        public ISeq invoke() {
-                            return traverse(lkey, lpriority, lleft);
-                        }
-                    }),
-                    new LazySeq(new AFn() {
-                        public ISeq invoke() {
-                            return traverse(key, priority, lright);
-                        }
-                    })
-            );
+    // serialization
+
+    /**
+     * Writes the entries of this PSQ to out in ascending key order: the count
+     * as an int followed by each key and priority, as written by kcodec and
+     * pcodec. Comparators and metadata are not written. See readFrom.
+     */
+    public void writeTo(DataOutput out, Codec kcodec, Codec pcodec) throws IOException {
+        out.writeInt(_count);
+        if (0 != _count)
+            writeTo(out, kcodec, pcodec, wkey, wpriority, wlosers);
+    }
+
+    // NB. traverses the tree in the same way as kvreduce
+    void writeTo(DataOutput out,
+                 Codec kcodec,
+                 Codec pcodec,
+                 Object key,
+                 Object priority,
+                 Loser losers) throws IOException {
+        while (null != losers) {
+            Object lkey = losers.key;
+            Object lpriority = losers.priority;
+            if (compareWith(kcomp, lkey, losers.split) <= 0) {
+                writeTo(out, kcodec, pcodec, lkey, lpriority, losers.left());
+            } else {
+                writeTo(out, kcodec, pcodec, key, priority, losers.left());
+                key = lkey;
+                priority = lpriority;
+            }
+            losers = losers.right();
+        }
+        kcodec.write(out, key);
+        pcodec.write(out, priority);
+    }
+
+    /**
+     * Reads a PSQ written by writeTo with the same codecs, using the given
+     * comparators, which must order the keys as the writer's did. The PSQ is
+     * built bottom-up in linear time; an IOException is thrown if the keys
+     * are not in ascending order.
+     */
+    static public PersistentPrioritySearchQueue readFrom(DataInput in,
+                                                         Comparator kcomp,
+                                                         Comparator pcomp,
+                                                         Codec kcodec,
+                                                         Codec pcodec) throws IOException {
+        return new PersistentPrioritySearchQueue(kcomp, pcomp).readFrom(in, kcodec, pcodec);
+    }
+
+    PersistentPrioritySearchQueue readFrom(DataInput in, Codec kcodec, Codec pcodec) throws IOException {
+        int n = in.readInt();
+        if (n < 0)
+            throw new IOException("Negative count: " + n);
+        Object[] keys = new Object[n];
+        Object[] priorities = new Object[n];
+        for (int i = 0; i < n; i++) {
+            Object k = kcodec.read(in);
+            if (i > 0 && compareWith(kcomp, keys[i - 1], k) >= 0)
+                throw new IOException(
+                        String.format("Keys not in ascending order: %s, %s", keys[i - 1], k)
+                );
+            keys[i] = k;
+            priorities[i] = pcodec.read(in);
+        }
+        return fromSorted(keys, priorities, n);
+    }
+
+    // NB. PSQs are serialized through SerializationProxy, which uses the
+    // format of writeTo rather than the node graph
+    Object writeReplace() {
+        return new SerializationProxy(this);
+    }
+
+    private void readObject(ObjectInputStream in) throws InvalidObjectException {
+        throw new InvalidObjectException("SerializationProxy required");
+    }
+
+    // reduce, kvreduce
+
+    // NB. the right spine of each subtree is walked iteratively, so the
+    // recursion depth is bounded by the height of the tree
+    Object reduce(IFn f, Object init, Object key, Object priority, Loser losers) {
+        Object acc = init;
+        while (null != losers) {
+            Object lkey = losers.key;
+            Object lpriority = losers.priority;
+            if (compareWith(kcomp, lkey, losers.split) <= 0) {
+                acc = reduce(f, acc, lkey, lpriority, losers.left());
+            } else {
+                acc = reduce(f, acc, key, priority, losers.left());
+                key = lkey;
+                priority = lpriority;
+            }
+            if (RT.isReduced(acc))
+                return acc;
+            losers = losers.right();
+        }
+        return f.invoke(acc, new MapEntry(key, priority));
+    }
+
+    Object kvreduce(IFn f, Object init, Object key, Object priority, Loser losers) {
+        Object acc = init;
+        while (null != losers) {
+            Object lkey = losers.key;
+            Object lpriority = losers.priority;
+            if (compareWith(kcomp, lkey, losers.split) <= 0) {
+                acc = kvreduce(f, acc, lkey, lpriority, losers.left());
+            } else {
+                acc = kvreduce(f, acc, key, priority, losers.left());
+                key = lkey;
+                priority = lpriority;
+            }
+            if (RT.isReduced(acc))
+                return acc;
+            losers = losers.right();
+        }
+        return f.invoke(acc, key, priority);
+    }
+
+    // fold
+
+    Object fold(Winner winner, long n, IFn combinef, IFn reducef) {
+        if (size(winner) <= n) {
+            Object ret = kvreduce(reducef, combinef.invoke(), winner.key, winner.priority, winner.losers);
+            if (RT.isReduced(ret))
+                return ((IDeref) ret).deref();
+            return ret;
+        }
+        Match match = unplay(winner);
+        FoldTask task = new FoldTask(this, match.left, n, combinef, reducef);
+        task.fork();
+        Object right = fold(match.right, n, combinef, reducef);
+        return combinef.invoke(task.join(), right);
+    }
+
+    /**
+     * Parallel fold in the sense of clojure.core.reducers/fold: subtrees of
+     * more than n entries are split and processed on the common fork/join
+     * pool (or the current pool if called from within a fork/join task), with
+     * the results combined using combinef. reducef is called with the
+     * accumulator, key and priority of each entry, as in reduce-kv.
+     */
+    public Object fold(long n, IFn combinef, IFn reducef) {
+        if (0 == _count)
+            return combinef.invoke();
+        FoldTask task = new FoldTask(this, winner(), n, combinef, reducef);
+        if (ForkJoinTask.inForkJoinPool())
+            return task.invoke();
+        return ForkJoinPool.commonPool().invoke(task);
+    }
+
+    // bounded-priority traversals
+
+    ISeq traverseAtMost(final Object priority, final Winner winner) {
+        if (null == winner || compareWith(pcomp, winner.priority, priority) > 0)
+            return PersistentList.EMPTY;
+        final Match match = unplay(winner);
+        if (null == match.right)
+            return RT.list(new MapEntry(match.left.key, match.left.priority));
         return concat(
                 new LazySeq(new AFn() {
                     public ISeq invoke() {
-                        return traverse(key, priority, lleft);
+                        return traverseAtMost(priority, match.left);
                     }
                 }),
                 new LazySeq(new AFn() {
                     public ISeq invoke() {
-                        return traverse(lkey, lpriority, lright);
+                        return traverseAtMost(priority, match.right);
                     }
                 })
         );
     }
 
-    ISeq rtraverse(final Object key, final Object priority, Loser losers) {
-        if (null == losers)
-            return RT.list(new MapEntry(key, priority));
-        final Object lkey = losers.key;
-        final Object lpriority = losers.priority;
-        final Loser lleft = losers.left;
-        final Loser lright = losers.right;
-        if (kcomp.compare(lkey, losers.split) <= 0)
-            return concat(
-                    new LazySeq(new AFn() {
-                        public ISeq invoke() {
-                            return rtraverse(key, priority, lright);
-                        }
-                    }),
-                    new LazySeq(new AFn() {
-                        public ISeq invoke() {
-                            return rtraverse(lkey, lpriority, lleft);
-                        }
-                    })
-            );
+    ISeq traverseBelow(final Object priority, final Winner winner) {
+        if (null == winner || compareWith(pcomp, winner.priority, priority) >= 0)
+            return PersistentList.EMPTY;
+        final Match match = unplay(winner);
+        if (null == match.right)
+            return RT.list(new MapEntry(match.left.key, match.left.priority));
         return concat(
                 new LazySeq(new AFn() {
                     public ISeq invoke() {
-                        return rtraverse(lkey, lpriority, lright);
+                        return traverseBelow(priority, match.left);
                     }
                 }),
                 new LazySeq(new AFn() {
                     public ISeq invoke() {
-                        return rtraverse(key, priority, lleft);
+                        return traverseBelow(priority, match.right);
                     }
                 })
         );
     }
 
-    ISeq traverseFrom(final Object lbound, Winner winner) {
-        if (null == winner)
-            return PersistentList.EMPTY;
-        final Match match = unplay(winner);
-        if (null == match.right) {
-            Object lkey = match.left.key;
-            if (kcomp.compare(lbound, lkey) <= 0)
-                return RT.list(new MapEntry(lkey, match.left.priority));
-            return PersistentList.EMPTY;
-        }
-        final Object lubound = match.left.ubound;
-        return concat(
-                new LazySeq(new AFn() {
-                    public ISeq invoke() {
-                        return kcomp.compare(lbound, lubound) <= 0 ?
-                                traverseFrom(lbound, match.left) :
-                                null;
-                    }
-                }),
-                new LazySeq(new AFn() {
-                    public ISeq invoke() {
-                        return traverseFrom(lbound, match.right);
-                    }
-                })
-        );
-    }
-
-    ISeq rtraverseFrom(final Object ubound, Winner winner) {
-        if (null == winner)
-            return PersistentList.EMPTY;
-        final Match match = unplay(winner);
-        if (null == match.right) {
-            Object lkey = match.left.key;
-            if (kcomp.compare(lkey, ubound) <= 0)
-                return RT.list(new MapEntry(lkey, match.left.priority));
-            return PersistentList.EMPTY;
-        }
-        final Object lubound = match.left.ubound;
-        return concat(
-                new LazySeq(new AFn() {
-                    public ISeq invoke() {
-                        return kcomp.compare(lubound, ubound) <= 0 ?
-                                rtraverseFrom(ubound, match.right) :
-                                null;
-                    }
-                }),
-                new LazySeq(new AFn() {
-                    public ISeq invoke() {
-                        return rtraverseFrom(ubound, match.left);
-                    }
-                })
-        );
-    }
-
-    // bounded-priority traversals
-
-    ISeq traverseAtMost(final Object priority, final Winner winner) {
-        if (null == winner || pcomp.compare(winner.priority, priority) > 0)
-            return PersistentList.EMPTY;
-        final Match match = unplay(winner);
-        if (null == match.right)
-            return RT.list(new MapEntry(match.left.key, match.left.priority));
-        return concat(
-                new LazySeq(new AFn() {
-                    public ISeq invoke() {
-                        return traverseAtMost(priority, match.left);
-                    }
-                }),
-                new LazySeq(new AFn() {
-                    public ISeq invoke() {
-                        return traverseAtMost(priority, match.right);
-                    }
-                })
-        );
-    }
-
-    ISeq traverseBelow(final Object priority, final Winner winner) {
-        if (null == winner || pcomp.compare(winner.priority, priority) >= 0)
-            return PersistentList.EMPTY;
-        final Match match = unplay(winner);
-        if (null == match.right)
-            return RT.list(new MapEntry(match.left.key, match.left.priority));
-        return concat(
-                new LazySeq(new AFn() {
-                    public ISeq invoke() {
-                        return traverseBelow(priority, match.left);
-                    }
-                }),
-                new LazySeq(new AFn() {
-                    public ISeq invoke() {
-                        return traverseBelow(priority, match.right);
-                    }
-                })
-        );
-    }
-
-    ISeq rtraverseAtMost(final Object priority, Winner winner) {
-        if (null == winner || pcomp.compare(winner.priority, priority) > 0)
+    ISeq rtraverseAtMost(final Object priority, Winner winner) {
+        if (null == winner || compareWith(pcomp, winner.priority, priority) > 0)
             return PersistentList.EMPTY;
         final Match match = unplay(winner);
         if (null == match.right)
@@ -965,7 +1449,7 @@ public final class PersistentPrioritySearchQueue
     }
 
     ISeq rtraverseBelow(final Object priority, Winner winner) {
-        if (null == winner || pcomp.compare(winner.priority, priority) >= 0)
+        if (null == winner || compareWith(pcomp, winner.priority, priority) >= 0)
             return PersistentList.EMPTY;
         final Match match = unplay(winner);
         if (null == match.right)
@@ -985,12 +1469,12 @@ public final class PersistentPrioritySearchQueue
     }
 
     ISeq traverseAtMostRange(final Object low, final Object high, final Object priority, Winner winner) {
-        if (null == winner || pcomp.compare(winner.priority, priority) > 0)
+        if (null == winner || compareWith(pcomp, winner.priority, priority) > 0)
             return PersistentList.EMPTY;
         final Match match = unplay(winner);
         if (null == match.right) {
             Object lkey = match.left.key;
-            if (kcomp.compare(low, lkey) <= 0 && kcomp.compare(lkey, high) <= 0)
+            if (compareWith(kcomp, low, lkey) <= 0 && compareWith(kcomp, lkey, high) <= 0)
                 return RT.list(new MapEntry(lkey, match.left.priority));
             return PersistentList.EMPTY;
         }
@@ -998,14 +1482,14 @@ public final class PersistentPrioritySearchQueue
         return concat(
                 new LazySeq(new AFn() {
                     public ISeq invoke() {
-                        return kcomp.compare(low, lubound) <= 0 ?
+                        return compareWith(kcomp, low, lubound) <= 0 ?
                                 traverseAtMostRange(low, high, priority, match.left) :
                                 null;
                     }
                 }),
                 new LazySeq(new AFn() {
                     public ISeq invoke() {
-                        return kcomp.compare(lubound, high) <= 0 ?
+                        return compareWith(kcomp, lubound, high) <= 0 ?
                                 traverseAtMostRange(low, high, priority, match.right) :
                                 null;
                     }
@@ -1014,12 +1498,12 @@ public final class PersistentPrioritySearchQueue
     }
 
     ISeq traverseBelowRange(final Object low, final Object high, final Object priority, Winner winner) {
-        if (null == winner || pcomp.compare(winner.priority, priority) >= 0)
+        if (null == winner || compareWith(pcomp, winner.priority, priority) >= 0)
             return PersistentList.EMPTY;
         final Match match = unplay(winner);
         if (null == match.right) {
             Object lkey = match.left.key;
-            if (kcomp.compare(low, lkey) <= 0 && kcomp.compare(lkey, high) <= 0)
+            if (compareWith(kcomp, low, lkey) <= 0 && compareWith(kcomp, lkey, high) <= 0)
                 return RT.list(new MapEntry(lkey, match.left.priority));
             return PersistentList.EMPTY;
         }
@@ -1027,14 +1511,14 @@ public final class PersistentPrioritySearchQueue
         return concat(
                 new LazySeq(new AFn() {
                     public ISeq invoke() {
-                        return kcomp.compare(low, lubound) <= 0 ?
+                        return compareWith(kcomp, low, lubound) <= 0 ?
                                 traverseBelowRange(low, high, priority, match.left) :
                                 null;
                     }
                 }),
                 new LazySeq(new AFn() {
                     public ISeq invoke() {
-                        return kcomp.compare(lubound, high) <= 0 ?
+                        return compareWith(kcomp, lubound, high) <= 0 ?
                                 traverseBelowRange(low, high, priority, match.right) :
                                 null;
                     }
@@ -1043,12 +1527,12 @@ public final class PersistentPrioritySearchQueue
     }
 
     ISeq rtraverseAtMostRange(final Object low, final Object high, final Object priority, Winner winner) {
-        if (null == winner || pcomp.compare(winner.priority, priority) > 0)
+        if (null == winner || compareWith(pcomp, winner.priority, priority) > 0)
             return PersistentList.EMPTY;
         final Match match = unplay(winner);
         if (null == match.right) {
             Object lkey = match.left.key;
-            if (kcomp.compare(low, lkey) <= 0 && kcomp.compare(lkey, high) <= 0)
+            if (compareWith(kcomp, low, lkey) <= 0 && compareWith(kcomp, lkey, high) <= 0)
                 return RT.list(new MapEntry(lkey, match.left.priority));
             return PersistentList.EMPTY;
         }
@@ -1056,14 +1540,14 @@ public final class PersistentPrioritySearchQueue
         return concat(
                 new LazySeq(new AFn() {
                     public ISeq invoke() {
-                        return kcomp.compare(lubound, high) <= 0 ?
+                        return compareWith(kcomp, lubound, high) <= 0 ?
                                 rtraverseAtMostRange(low, high, priority, match.right) :
                                 null;
                     }
                 }),
                 new LazySeq(new AFn() {
                     public ISeq invoke() {
-                        return kcomp.compare(low, lubound) <= 0 ?
+                        return compareWith(kcomp, low, lubound) <= 0 ?
                                 rtraverseAtMostRange(low, high, priority, match.left) :
                                 null;
                     }
@@ -1072,12 +1556,12 @@ public final class PersistentPrioritySearchQueue
     }
 
     ISeq rtraverseBelowRange(final Object low, final Object high, final Object priority, Winner winner) {
-        if (null == winner || pcomp.compare(winner.priority, priority) >= 0)
+        if (null == winner || compareWith(pcomp, winner.priority, priority) >= 0)
             return PersistentList.EMPTY;
         final Match match = unplay(winner);
         if (null == match.right) {
             Object lkey = match.left.key;
-            if (kcomp.compare(low, lkey) <= 0 && kcomp.compare(lkey, high) <= 0)
+            if (compareWith(kcomp, low, lkey) <= 0 && compareWith(kcomp, lkey, high) <= 0)
                 return RT.list(new MapEntry(lkey, match.left.priority));
             return PersistentList.EMPTY;
         }
@@ -1085,14 +1569,14 @@ public final class PersistentPrioritySearchQueue
         return concat(
                 new LazySeq(new AFn() {
                     public ISeq invoke() {
-                        return kcomp.compare(lubound, high) <= 0 ?
+                        return compareWith(kcomp, lubound, high) <= 0 ?
                                 rtraverseBelowRange(low, high, priority, match.right) :
                                 null;
                     }
                 }),
                 new LazySeq(new AFn() {
                     public ISeq invoke() {
-                        return kcomp.compare(low, lubound) <= 0 ?
+                        return compareWith(kcomp, low, lubound) <= 0 ?
                                 rtraverseBelowRange(low, high, priority, match.left) :
                                 null;
                     }
@@ -1102,35 +1586,60 @@ public final class PersistentPrioritySearchQueue
     // IPrioritySearchQueue
 
     public ISeq atMost(Object priority) {
-        return traverseAtMost(priority, winner);
+        return traverseAtMost(priority, winner());
     }
 
     public ISeq below(Object priority) {
-        return traverseBelow(priority, winner);
+        return traverseBelow(priority, winner());
     }
 
     public ISeq atMostRange(Object low, Object high, Object priority) {
-        return traverseAtMostRange(low, high, priority, winner);
+        return traverseAtMostRange(low, high, priority, winner());
     }
 
     public ISeq belowRange(Object low, Object high, Object priority) {
-        return traverseBelowRange(low, high, priority, winner);
+        return traverseBelowRange(low, high, priority, winner());
     }
 
     public ISeq reverseAtMost(Object priority) {
-        return rtraverseAtMost(priority, winner);
+        return rtraverseAtMost(priority, winner());
     }
 
     public ISeq reverseBelow(Object priority) {
-        return rtraverseBelow(priority, winner);
+        return rtraverseBelow(priority, winner());
     }
 
     public ISeq reverseAtMostRange(Object low, Object high, Object priority) {
-        return rtraverseAtMostRange(low, high, priority, winner);
+        return rtraverseAtMostRange(low, high, priority, winner());
     }
 
     public ISeq reverseBelowRange(Object low, Object high, Object priority) {
-        return rtraverseBelowRange(low, high, priority, winner);
+        return rtraverseBelowRange(low, high, priority, winner());
+    }
+
+    // priority updates
+
+    /**
+     * Returns a PSQ in which the priority of key is replaced with the result
+     * of calling f on its current priority, or this PSQ if key is absent.
+     * Takes a single descent and does no rebalancing.
+     */
+    public PersistentPrioritySearchQueue adjust(Object key, IFn f) {
+        return adjust(key, f, null);
+    }
+
+    public PersistentPrioritySearchQueue updatePriority(Object key, Object priority) {
+        return adjust(key, null, priority);
+    }
+
+    PersistentPrioritySearchQueue adjust(Object key, IFn f, Object priority) {
+        if (0 == _count)
+            return this;
+        MatchFrame mf = matchFrame();
+        adjust(key, f, priority, mf);
+        if (!mf.found)
+            return this;
+        return new PersistentPrioritySearchQueue(mf, kcomp, pcomp, measure, _count, _meta);
     }
 
     // split
@@ -1142,18 +1651,18 @@ public final class PersistentPrioritySearchQueue
         }
 
         Box splitEntry = new Box(null);
-        Match split = split(winner, splitKey, splitEntry);
+        Match split = split(winner(), splitKey, splitEntry);
         Object left = null, right = null;
-        int lsize = split.left == null ? 0 : rank(split.left.ubound) + 1;
+        int lsize = size(split.left);
         int rsize = _count - lsize;
         if (splitEntry.val != null)
             rsize -= 1;
         if (split.left != null)
-            left = new PersistentPrioritySearchQueue(split.left, kcomp, pcomp, lsize, null);
+            left = new PersistentPrioritySearchQueue(split.left, kcomp, pcomp, measure, lsize, null);
         else
             left = empty().withMeta(null);
         if (split.right != null)
-            right = new PersistentPrioritySearchQueue(split.right, kcomp, pcomp, rsize, null);
+            right = new PersistentPrioritySearchQueue(split.right, kcomp, pcomp, measure, rsize, null);
         else
             right = empty().withMeta(null);
         return PersistentVector.create(left, splitEntry.val, right);
@@ -1162,53 +1671,821 @@ public final class PersistentPrioritySearchQueue
     Match split(Winner winner, Object splitKey, Box splitEntry) {
         if (winner == null)
             return Match.EMPTY;
-        if (kcomp.compare(splitKey, winner.key) == 0) {
+        if (compareWith(kcomp, splitKey, winner.key) == 0) {
             splitEntry.val = lookup(splitKey, winner);
             winner = delete(splitKey, winner, new Box(null));
             if (winner == null)
                 return Match.EMPTY;
         }
         if (winner.losers == null) {
-            if (kcomp.compare(splitKey, winner.key) <= 0)
+            if (compareWith(kcomp, splitKey, winner.key) <= 0)
                 return new Match(null, winner);
             return new Match(winner);
         }
 
         Match match = unplay(winner);
-        if (kcomp.compare(splitKey, match.left.ubound) <= 0) {
+        if (compareWith(kcomp, splitKey, match.left.ubound) <= 0) {
             Match sub = split(match.left, splitKey, splitEntry);
-            return new Match(sub.left, play(sub.right, match.right));
+            return new Match(sub.left, join(sub.right, match.right));
         } else {
             Match sub = split(match.right, splitKey, splitEntry);
-            return new Match(play(match.left, sub.left), sub.right);
+            return new Match(join(match.left, sub.left), sub.right);
+        }
+    }
+
+    // subrange
+
+    /**
+     * Returns a PSQ comprising the entries of this PSQ whose keys lie between
+     * low and high, with the endpoints included as specified, in O(log n)
+     * time. Throws IndexOutOfBoundsException if low is greater than high.
+     */
+    public PersistentPrioritySearchQueue subrange(Object low,
+                                                  boolean lowInclusive,
+                                                  Object high,
+                                                  boolean highInclusive) {
+        if (0 == _count)
+            return this;
+        if (compareWith(kcomp, low, high) > 0)
+            throw new IndexOutOfBoundsException("start greater than end in subrange");
+        return range(range(winner(), low, lowInclusive, high, highInclusive));
+    }
+
+    /**
+     * Returns a PSQ comprising the entries of this PSQ whose keys are greater
+     * than (or equal to, if inclusive) low.
+     */
+    public PersistentPrioritySearchQueue subrangeFrom(Object low, boolean inclusive) {
+        if (0 == _count)
+            return this;
+        return range(rangeFrom(winner(), low, inclusive));
+    }
+
+    /**
+     * Returns a PSQ comprising the entries of this PSQ whose keys are less
+     * than (or equal to, if inclusive) high.
+     */
+    public PersistentPrioritySearchQueue subrangeTo(Object high, boolean inclusive) {
+        if (0 == _count)
+            return this;
+        return range(rangeTo(winner(), high, inclusive));
+    }
+
+    PersistentPrioritySearchQueue range(Winner winner) {
+        int count = size(winner);
+        if (count == _count)
+            return this;
+        return new PersistentPrioritySearchQueue(winner, kcomp, pcomp, measure, count, _meta);
+    }
+
+    // is a key outside a bound, given c, the comparison of the key and the
+    // bound (or of the bound and the key, for upper bounds)?
+    static boolean outside(int c, boolean inclusive) {
+        return inclusive ? c < 0 : c <= 0;
+    }
+
+    // NB. descends while the range lies on one side of the left subtree's
+    // ubound; once it straddles it, each side is bounded at one end only
+    Winner range(Winner winner, Object low, boolean lowInclusive, Object high, boolean highInclusive) {
+        while (true) {
+            if (null == winner || outside(compareWith(kcomp, winner.ubound, low), lowInclusive))
+                return null;
+            if (!outside(compareWith(kcomp, high, winner.ubound), highInclusive))
+                return rangeFrom(winner, low, lowInclusive);
+            if (null == winner.losers)
+                return outside(compareWith(kcomp, high, winner.key), highInclusive) ? null : winner;
+            Match match = unplay(winner);
+            Object lubound = match.left.ubound;
+            if (outside(compareWith(kcomp, lubound, low), lowInclusive)) {
+                winner = match.right;
+            } else if (compareWith(kcomp, high, lubound) <= 0) {
+                winner = match.left;
+            } else {
+                return join(
+                        rangeFrom(match.left, low, lowInclusive),
+                        rangeTo(match.right, high, highInclusive)
+                );
+            }
+        }
+    }
+
+    // NB. the join calls along the path take O(log n) time in total, as in
+    // split
+    Winner rangeFrom(Winner winner, Object low, boolean inclusive) {
+        if (null == winner || outside(compareWith(kcomp, winner.ubound, low), inclusive))
+            return null;
+        if (null == winner.losers)
+            return winner;
+        Match match = unplay(winner);
+        if (outside(compareWith(kcomp, match.left.ubound, low), inclusive))
+            return rangeFrom(match.right, low, inclusive);
+        return join(rangeFrom(match.left, low, inclusive), match.right);
+    }
+
+    Winner rangeTo(Winner winner, Object high, boolean inclusive) {
+        if (null == winner || !outside(compareWith(kcomp, high, winner.ubound), inclusive))
+            return winner;
+        if (null == winner.losers)
+            return null;
+        Match match = unplay(winner);
+        Object lubound = match.left.ubound;
+        if (compareWith(kcomp, high, lubound) <= 0)
+            return rangeTo(match.left, high, inclusive);
+        return join(match.left, rangeTo(match.right, high, inclusive));
+    }
+
+    // range removal
+
+    /**
+     * Returns a PSQ without the entries whose keys lie between low and high,
+     * with the endpoints included as specified. The PSQ is split at both ends
+     * and the outer pieces are joined, in O(log n) time.
+     */
+    public PersistentPrioritySearchQueue dissocRange(Object low,
+                                                     boolean lowInclusive,
+                                                     Object high,
+                                                     boolean highInclusive) {
+        int c = compareWith(kcomp, low, high);
+        if (0 == _count || c > 0 || (c == 0 && !(lowInclusive && highInclusive)))
+            return this;
+
+        Box lowEntry = new Box(null);
+        Box highEntry = new Box(null);
+        Match outer = split(winner(), low, lowEntry);
+        Winner left = outer.left;
+        Winner right = split(outer.right, high, highEntry).right;
+        if (!lowInclusive && null != lowEntry.val)
+            left = join(left, singleton((MapEntry) lowEntry.val));
+        if (!highInclusive && null != highEntry.val)
+            right = join(singleton((MapEntry) highEntry.val), right);
+
+        Winner winner = join(left, right);
+        int count = size(winner);
+        if (count == _count)
+            return this;
+        return new PersistentPrioritySearchQueue(winner, kcomp, pcomp, measure, count, _meta);
+    }
+
+    static Winner singleton(MapEntry entry) {
+        return new Winner(entry.key(), entry.val(), null, entry.key());
+    }
+
+    // returns the entries <= and > splitKey
+    Match splitAtMost(Winner winner, Object splitKey) {
+        if (null == winner)
+            return Match.EMPTY;
+        if (null == winner.losers) {
+            if (compareWith(kcomp, winner.key, splitKey) <= 0)
+                return new Match(winner);
+            return new Match(null, winner);
+        }
+
+        Match match = unplay(winner);
+        int c = compareWith(kcomp, splitKey, match.left.ubound);
+        if (c == 0)
+            return match;
+        if (c < 0) {
+            Match sub = splitAtMost(match.left, splitKey);
+            return new Match(sub.left, join(sub.right, match.right));
+        }
+        Match sub = splitAtMost(match.right, splitKey);
+        return new Match(join(match.left, sub.left), sub.right);
+    }
+
+    // join
+
+    static int size(Winner winner) {
+        if (null == winner)
+            return 0;
+        return size(winner.losers) + 1;
+    }
+
+    // NB. all keys in left must be less than all keys in right; the taller
+    // tree is descended until the sizes are within a factor of omega, so that
+    // play only ever needs to rebalance locally
+    Winner join(Winner left, Winner right) {
+        if (null == left)
+            return right;
+        if (null == right)
+            return left;
+
+        int sl = size(left.losers);
+        int sr = size(right.losers);
+        if (sl + sr >= 2) {
+            if (sr > omega(sl)) {
+                Match match = unplay(right);
+                return play(join(left, match.left), match.right);
+            }
+            if (sl > omega(sr)) {
+                Match match = unplay(left);
+                return play(match.left, join(match.right, right));
+            }
+        }
+        return play(left, right);
+    }
+
+    // NB. trees built with different orders can't be combined, since the
+    // result would satisfy neither order's invariants; nor can trees with
+    // different measures, whose branches would hold incomparable measures
+    // (or none at all)
+    void checkCompatible(PersistentPrioritySearchQueue other) {
+        if (!Util.equals(kcomp, other.kcomp) || !Util.equals(pcomp, other.pcomp))
+            throw new IllegalArgumentException("PSQs use different comparators");
+        if (!Util.equals(measure, other.measure))
+            throw new IllegalArgumentException("PSQs use different measures");
+    }
+
+    /**
+     * Returns a PSQ containing the entries of this PSQ and other, which must
+     * use the same comparators and measure and whose keys must all be greater than those
+     * in this PSQ. The metadata of this PSQ is kept. Runs in O(log n) time.
+     */
+    public PersistentPrioritySearchQueue join(PersistentPrioritySearchQueue other) {
+        checkCompatible(other);
+        if (0 == other._count)
+            return this;
+        if (0 == _count)
+            return other.withMeta(_meta);
+        // NB. wubound is the greatest key of this PSQ, so only the least key
+        // of other needs to be looked up
+        Object first = ((MapEntry) other.nth(0)).key();
+        if (compareWith(kcomp, wubound, first) >= 0)
+            throw new IllegalArgumentException(
+                    String.format("Keys not disjoint and ordered: %s, %s", wubound, first)
+            );
+        return new PersistentPrioritySearchQueue(
+                join(winner(), other.winner()),
+                kcomp,
+                pcomp,
+                measure,
+                _count + other._count,
+                _meta
+        );
+    }
+
+    // set operations
+
+    static final int UNION = 0;
+    static final int INTERSECTION = 1;
+    static final int DIFFERENCE = 2;
+
+    static final int PARALLEL_THRESHOLD = 4096;
+
+    static final Object NOT_FOUND = new Object();
+
+    static Object merge(IFn f, Object p1, Object p2) {
+        if (null == f)
+            return p2;
+        return f.invoke(p1, p2);
+    }
+
+    Object lookupPriority(Object k, Winner winner) {
+        return lookupPriority(k, winner.key, winner.priority, winner.losers, NOT_FOUND);
+    }
+
+    // split-and-join divide and conquer on the structure of w2; w1 is split
+    // at the key bounding the left subtree of w2
+    Winner combine(int op, Winner w1, Winner w2, IFn f, boolean parallel) {
+        if (null == w1)
+            return op == UNION ? w2 : null;
+        if (null == w2)
+            return op == INTERSECTION ? null : w1;
+
+        if (null == w2.losers) {
+            Object k = w2.key;
+            Object p1 = lookupPriority(k, w1);
+            switch (op) {
+                case UNION:
+                    return insert(
+                            k,
+                            NOT_FOUND == p1 ? w2.priority : merge(f, p1, w2.priority),
+                            w1,
+                            new MatchFrame()
+                    );
+                case INTERSECTION:
+                    if (NOT_FOUND == p1)
+                        return null;
+                    return new Winner(k, merge(f, p1, w2.priority), null, k);
+                default:
+                    if (NOT_FOUND == p1)
+                        return w1;
+                    return delete(k, w1, new Box(null));
+            }
+        }
+
+        if (null == w1.losers) {
+            Object k = w1.key;
+            Object p2 = lookupPriority(k, w2);
+            switch (op) {
+                case UNION:
+                    return insert(
+                            k,
+                            NOT_FOUND == p2 ? w1.priority : merge(f, w1.priority, p2),
+                            w2,
+                            new MatchFrame()
+                    );
+                case INTERSECTION:
+                    if (NOT_FOUND == p2)
+                        return null;
+                    return new Winner(k, merge(f, w1.priority, p2), null, k);
+                default:
+                    return NOT_FOUND == p2 ? w1 : null;
+            }
+        }
+
+        Match match2 = unplay(w2);
+        Match match1 = splitAtMost(w1, match2.left.ubound);
+        Winner left, right;
+        if (parallel && size(w1) + size(w2) >= PARALLEL_THRESHOLD) {
+            CombineTask task = new CombineTask(this, op, match1.left, match2.left, f);
+            task.fork();
+            right = combine(op, match1.right, match2.right, f, true);
+            left = task.join();
+        } else {
+            left = combine(op, match1.left, match2.left, f, parallel);
+            right = combine(op, match1.right, match2.right, f, parallel);
+        }
+        return join(left, right);
+    }
+
+    PersistentPrioritySearchQueue combine(int op,
+                                          PersistentPrioritySearchQueue other,
+                                          IFn f,
+                                          ForkJoinPool pool) {
+        checkCompatible(other);
+        Winner result;
+        if (null == pool)
+            result = combine(op, winner(), other.winner(), f, false);
+        else
+            result = pool.invoke(new CombineTask(this, op, winner(), other.winner(), f));
+        return new PersistentPrioritySearchQueue(result, kcomp, pcomp, measure, size(result), _meta);
+    }
+
+    /**
+     * Returns a PSQ containing the entries of both this PSQ and other, which
+     * must use the same comparators. Where both contain the same key, the
+     * priority is (f this-priority other-priority), or other's priority if f
+     * is null.
+     */
+    public PersistentPrioritySearchQueue union(PersistentPrioritySearchQueue other, IFn f) {
+        return combine(UNION, other, f, null);
+    }
+
+    public PersistentPrioritySearchQueue union(PersistentPrioritySearchQueue other,
+                                               IFn f,
+                                               ForkJoinPool pool) {
+        return combine(UNION, other, f, pool);
+    }
+
+    /**
+     * Returns a PSQ containing the entries of this PSQ whose keys are also
+     * present in other, which must use the same comparators. Priorities are
+     * merged as in union.
+     */
+    public PersistentPrioritySearchQueue intersection(PersistentPrioritySearchQueue other, IFn f) {
+        return combine(INTERSECTION, other, f, null);
+    }
+
+    public PersistentPrioritySearchQueue intersection(PersistentPrioritySearchQueue other,
+                                                      IFn f,
+                                                      ForkJoinPool pool) {
+        return combine(INTERSECTION, other, f, pool);
+    }
+
+    /**
+     * Returns a PSQ containing the entries of this PSQ whose keys are not
+     * present in other, which must use the same comparators.
+     */
+    public PersistentPrioritySearchQueue difference(PersistentPrioritySearchQueue other) {
+        return combine(DIFFERENCE, other, null, null);
+    }
+
+    public PersistentPrioritySearchQueue difference(PersistentPrioritySearchQueue other,
+                                                    ForkJoinPool pool) {
+        return combine(DIFFERENCE, other, null, pool);
+    }
+
+    // diff
+
+    /**
+     * Returns a vector of three PSQs: the entries of other whose keys are not
+     * present in this PSQ, the entries of this PSQ whose keys are not present
+     * in other and the entries of other whose keys are present in this PSQ
+     * with a different priority. other must use the same comparators.
+     *
+     * Subtrees shared by both PSQs are skipped, so for versions derived from
+     * one another by d updates this takes O(d log^2 n) time.
+     */
+    public PersistentVector diff(PersistentPrioritySearchQueue other) {
+        ITransientMap added = new PersistentPrioritySearchQueue(kcomp, pcomp, measure, null).asTransient();
+        ITransientMap removed = new PersistentPrioritySearchQueue(kcomp, pcomp, measure, null).asTransient();
+        ITransientMap changed = new PersistentPrioritySearchQueue(kcomp, pcomp, measure, null).asTransient();
+        diff(winner(), other.winner(), added, removed, changed);
+        return PersistentVector.create(
+                added.persistent(),
+                removed.persistent(),
+                changed.persistent()
+        );
+    }
+
+    // NB. a subtree holds the entries of its loser tree plus its winner, so
+    // if both loser trees are the same node, only the winners can differ;
+    // otherwise the larger tree is unplayed and the other split to match
+    void diff(Winner w1,
+              Winner w2,
+              ITransientMap added,
+              ITransientMap removed,
+              ITransientMap changed) {
+        if (null == w1) {
+            collect(w2, added);
+            return;
+        }
+        if (null == w2) {
+            collect(w1, removed);
+            return;
+        }
+
+        if (w1.losers == w2.losers) {
+            if (compareWith(kcomp, w1.key, w2.key) == 0) {
+                if (!Util.equiv(w1.priority, w2.priority))
+                    changed.assoc(w2.key, w2.priority);
+            } else {
+                removed.assoc(w1.key, w1.priority);
+                added.assoc(w2.key, w2.priority);
+            }
+            return;
+        }
+
+        Match match1, match2;
+        if (size(w1.losers) >= size(w2.losers)) {
+            match1 = unplay(w1);
+            match2 = splitAtMost(w2, match1.left.ubound);
+        } else {
+            match2 = unplay(w2);
+            match1 = splitAtMost(w1, match2.left.ubound);
+        }
+        diff(match1.left, match2.left, added, removed, changed);
+        diff(match1.right, match2.right, added, removed, changed);
+    }
+
+    static void collect(Winner winner, ITransientMap acc) {
+        if (null == winner)
+            return;
+        acc.assoc(winner.key, winner.priority);
+        collect(winner.losers, acc);
+    }
+
+    static void collect(Loser losers, ITransientMap acc) {
+        while (null != losers) {
+            acc.assoc(losers.key, losers.priority);
+            collect(losers.left(), acc);
+            losers = losers.right();
         }
     }
 
+    // batch pops
+
+    public IPersistentVector popN(int n) {
+        return pops(n, false, null, false);
+    }
+
+    public IPersistentVector popAtMost(Object priority) {
+        return pops(Integer.MAX_VALUE, true, priority, false);
+    }
+
+    public IPersistentVector popBelow(Object priority) {
+        return pops(Integer.MAX_VALUE, true, priority, true);
+    }
+
+    // returns [entries residual], the entries in priority order; the pops
+    // share an edit, so that the residual tree is copied once and then
+    // updated in place
+    IPersistentVector pops(int n, boolean bounded, Object priority, boolean strict) {
+        AtomicReference<Thread> edit = new AtomicReference<Thread>(Thread.currentThread());
+        MatchFrame mf = new MatchFrame(edit);
+        ArrayList<Object> entries = new ArrayList<Object>();
+        Winner w = winner();
+        while (entries.size() < n && null != w) {
+            if (bounded) {
+                int c = compareWith(pcomp, w.priority, priority);
+                if (strict ? c >= 0 : c > 0)
+                    break;
+            }
+            entries.add(new MapEntry(w.key, w.priority));
+            mf.clear();
+            secondBest(w.losers, w.ubound, mf);
+            w = mf.getLeft();
+        }
+        edit.set(null);
+
+        int m = entries.size();
+        if (0 == m)
+            return PersistentVector.create(PersistentVector.EMPTY, this);
+        return PersistentVector.create(
+                PersistentVector.create(entries),
+                new PersistentPrioritySearchQueue(w, kcomp, pcomp, measure, _count - m, _meta)
+        );
+    }
+
+    // bulk deletes
+
+    public IPersistentVector deleteAtMost(Object priority) {
+        return deletes(false, null, null, priority, false);
+    }
+
+    public IPersistentVector deleteBelow(Object priority) {
+        return deletes(false, null, null, priority, true);
+    }
+
+    // NB. the key range is inclusive at both ends, as in atMostRange
+    public IPersistentVector deleteAtMostRange(Object low, Object high, Object priority) {
+        return deletes(true, low, high, priority, false);
+    }
+
+    public IPersistentVector deleteBelowRange(Object low, Object high, Object priority) {
+        return deletes(true, low, high, priority, true);
+    }
+
+    // returns [entries residual], the entries in key order
+    IPersistentVector deletes(boolean ranged, Object low, Object high, Object priority, boolean strict) {
+        ArrayList<Object> entries = new ArrayList<Object>();
+        Winner w = deletes(winner(), ranged, low, high, priority, strict, entries);
+        int m = entries.size();
+        if (0 == m)
+            return PersistentVector.create(PersistentVector.EMPTY, this);
+        return PersistentVector.create(
+                PersistentVector.create(entries),
+                new PersistentPrioritySearchQueue(w, kcomp, pcomp, measure, _count - m, _meta)
+        );
+    }
+
+    // NB. subtrees whose winner is excluded by priority, or whose keys all
+    // lie outside the range, are returned as they are, so only the paths to
+    // the deleted entries are unplayed and rejoined
+    Winner deletes(Winner winner,
+                   boolean ranged,
+                   Object low,
+                   Object high,
+                   Object priority,
+                   boolean strict,
+                   ArrayList<Object> entries) {
+        if (null == winner)
+            return null;
+        int c = compareWith(pcomp, winner.priority, priority);
+        if (strict ? c >= 0 : c > 0)
+            return winner;
+        if (ranged && compareWith(kcomp, winner.ubound, low) < 0)
+            return winner;
+
+        if (null == winner.losers) {
+            if (ranged && compareWith(kcomp, winner.key, high) > 0)
+                return winner;
+            entries.add(new MapEntry(winner.key, winner.priority));
+            return null;
+        }
+
+        Match match = unplay(winner);
+        Object lubound = match.left.ubound;
+        Winner left = match.left;
+        Winner right = match.right;
+        if (!ranged || compareWith(kcomp, low, lubound) <= 0)
+            left = deletes(left, ranged, low, high, priority, strict, entries);
+        if (!ranged || compareWith(kcomp, lubound, high) < 0)
+            right = deletes(right, ranged, low, high, priority, strict, entries);
+        if (left == match.left && right == match.right)
+            return winner;
+        return join(left, right);
+    }
+
+    // measures
+
+    /**
+     * Returns a PSQ with the entries of this PSQ which caches the given
+     * measure of each subtree, so that measureRange runs in O(log n) time.
+     * The tree is rebuilt in linear time. Operations combining PSQs require
+     * them to use the same measure as well as the same comparators; freeze
+     * and the LongLong variant do not support measures.
+     */
+    public PersistentPrioritySearchQueue withMeasure(Measure measure) {
+        Object[] keys = new Object[_count];
+        Object[] priorities = new Object[_count];
+        int i = 0;
+        for (Iterator it = iterator(); it.hasNext(); i++) {
+            Map.Entry e = (Map.Entry) it.next();
+            keys[i] = e.getKey();
+            priorities[i] = e.getValue();
+        }
+        return new PersistentPrioritySearchQueue(kcomp, pcomp, measure, _meta)
+                .fromSorted(keys, priorities, _count);
+    }
+
+    // the measure of the entries of the loser tree rooted at loser
+    Object measure(Loser loser) {
+        if (null == loser)
+            return measure.identity();
+        if (loser instanceof MeasuredBranch)
+            return ((MeasuredBranch) loser).measure;
+        return measure.measure(loser.key, loser.priority);
+    }
+
+    Object measure(Object key, Object priority, Loser left, Loser right) {
+        return measure.combine(
+                measure.combine(measure(left), measure.measure(key, priority)),
+                measure(right)
+        );
+    }
+
+    /**
+     * Returns the measure of all entries of this PSQ in O(1) time.
+     */
+    public Object measureAll() {
+        if (null == measure)
+            return throwUnsupported();
+        if (0 == _count)
+            return measure.identity();
+        return measure.combine(measure.measure(wkey, wpriority), measure(wlosers));
+    }
+
+    /**
+     * Returns the measure of the entries of this PSQ whose keys lie between
+     * low and high, inclusive, in O(log n) time.
+     */
+    public Object measureRange(Object low, Object high) {
+        if (null == measure)
+            return throwUnsupported();
+        if (0 == _count || compareWith(kcomp, low, high) > 0)
+            return measure.identity();
+        return measureRange(wkey, wpriority, wlosers, false, null, wubound, low, high);
+    }
+
+    // NB. the subtree with the given winner and losers holds keys > lbound
+    // (if hasLbound) and <= ubound; subtrees within [low, high] contribute
+    // their cached measures, so only the paths to low and high are descended
+    Object measureRange(Object key,
+                        Object priority,
+                        Loser losers,
+                        boolean hasLbound,
+                        Object lbound,
+                        Object ubound,
+                        Object low,
+                        Object high) {
+        if (compareWith(kcomp, ubound, low) < 0
+                || (hasLbound && compareWith(kcomp, lbound, high) >= 0))
+            return measure.identity();
+        if (hasLbound && compareWith(kcomp, lbound, low) >= 0
+                && compareWith(kcomp, ubound, high) <= 0)
+            return measure.combine(measure.measure(key, priority), measure(losers));
+        if (null == losers)
+            return compareWith(kcomp, high, key) < 0 ? measure.identity() : measure.measure(key, priority);
+
+        Object lkey = losers.key;
+        Object lpriority = losers.priority;
+        Object split = losers.split;
+        Object left, right;
+        if (compareWith(kcomp, lkey, split) <= 0) {
+            left = measureRange(lkey, lpriority, losers.left(), hasLbound, lbound, split, low, high);
+            right = measureRange(key, priority, losers.right(), true, split, ubound, low, high);
+        } else {
+            left = measureRange(key, priority, losers.left(), hasLbound, lbound, split, low, high);
+            right = measureRange(lkey, lpriority, losers.right(), true, split, ubound, low, high);
+        }
+        return measure.combine(left, right);
+    }
+
     // rank
 
     public int rank(Object key) {
         if (isEmpty())
             return -1;
-        if (kcomp.compare(winner.ubound, key) == 0)
+        if (compareWith(kcomp, wubound, key) == 0)
             return _count - 1;
         int rank = 0;
-        for (Loser loser = winner.losers; loser != null; ) {
-            int c = kcomp.compare(key, loser.split);
+        for (Loser loser = wlosers; loser != null; ) {
+            int c = compareWith(kcomp, key, loser.split);
             if (c < 0) {
-                loser = loser.left;
+                loser = loser.left();
                 continue;
             } else if (c > 0) {
-                rank += size(loser.left) + 1;
-                loser = loser.right;
+                rank += size(loser.left()) + 1;
+                loser = loser.right();
                 continue;
             }
-            return rank + size(loser.left);
+            return rank + size(loser.left());
         }
         return -1;
     }
 
+    /**
+     * Returns the number of keys between low and high, with the endpoints
+     * included as specified, in O(log n) time.
+     */
+    public int countRange(Object low, boolean lowInclusive, Object high, boolean highInclusive) {
+        return Math.max(0, countBelow(high, highInclusive) - countBelow(low, !lowInclusive));
+    }
+
+    // the number of keys < key, or <= key if inclusive
+    int countBelow(Object key, boolean inclusive) {
+        if (isEmpty())
+            return 0;
+        int c = compareWith(kcomp, key, wubound);
+        if (c > 0 || (c == 0 && inclusive))
+            return _count;
+        int ret = 0;
+        for (Loser loser = wlosers; loser != null; ) {
+            c = compareWith(kcomp, key, loser.split);
+            if (c < 0) {
+                loser = loser.left();
+                continue;
+            } else if (c > 0) {
+                ret += size(loser.left()) + 1;
+                loser = loser.right();
+                continue;
+            }
+            return ret + size(loser.left()) + (inclusive ? 1 : 0);
+        }
+        // NB. the remaining key is the least split passed on the left, or
+        // wubound, so it is greater than key
+        return ret;
+    }
+
+    // positional slicing
+
+    public PersistentVector splitAt(int i) {
+        return PersistentVector.create(take(i), drop(i));
+    }
+
+    /**
+     * Returns a PSQ comprising the first n entries of this PSQ in key order,
+     * or all of them if there are fewer than n.
+     */
+    public PersistentPrioritySearchQueue take(int n) {
+        return range(take(winner(), n));
+    }
+
+    /**
+     * Returns a PSQ comprising the entries of this PSQ except the first n in
+     * key order.
+     */
+    public PersistentPrioritySearchQueue drop(int n) {
+        return range(drop(winner(), n));
+    }
+
+    /**
+     * Returns a PSQ comprising the entries of this PSQ at indices from
+     * (inclusive) to to (exclusive) in key order.
+     */
+    public PersistentPrioritySearchQueue slice(int from, int to) {
+        if (from < 0 || to < from || _count < to)
+            throw new IndexOutOfBoundsException();
+        return range(take(drop(winner(), from), to - from));
+    }
+
+    // NB. as in subrange, the joins along the path take O(log n) in total
+    Winner take(Winner winner, int n) {
+        if (null == winner || n <= 0)
+            return null;
+        if (n >= size(winner))
+            return winner;
+        Match match = unplay(winner);
+        int lsize = size(match.left);
+        if (n <= lsize)
+            return take(match.left, n);
+        return join(match.left, take(match.right, n - lsize));
+    }
+
+    Winner drop(Winner winner, int n) {
+        if (null == winner || n <= 0)
+            return winner;
+        if (n >= size(winner))
+            return null;
+        Match match = unplay(winner);
+        int lsize = size(match.left);
+        if (n >= lsize)
+            return drop(match.right, n - lsize);
+        return join(drop(match.left, n), match.right);
+    }
+
     // helpers
 
+    // NB. with RT.DEFAULT_COMPARATOR, common cases are handled directly with
+    // the semantics of Util.compare (for Doubles, that of Numbers.compare)
+    static int compareWith(Comparator comp, Object x, Object y) {
+        if (comp == RT.DEFAULT_COMPARATOR) {
+            if (x instanceof Long && y instanceof Long)
+                return Long.compare((Long) x, (Long) y);
+            if (x instanceof String && y instanceof String)
+                return ((String) x).compareTo((String) y);
+            if (x instanceof Keyword && y instanceof Keyword)
+                return ((Keyword) x).compareTo(y);
+            if (x instanceof Double && y instanceof Double) {
+                double dx = (Double) x;
+                double dy = (Double) y;
+                return dx < dy ? -1 : (dy < dx ? 1 : 0);
+            }
+        }
+        return comp.compare(x, y);
+    }
+
     Object throwUnsupported() {
         throw new UnsupportedOperationException();
     }
@@ -1239,15 +2516,16 @@ public final class PersistentPrioritySearchQueue
     // clojure.lang.Associative
 
     public PersistentPrioritySearchQueue assoc(Object k, Object p) {
-//        Box found = new Box(null);
-//        Winner newWinner = insert(k, p, winner, found);
-        MatchFrame mf = new MatchFrame();
-        Winner newWinner = insert(k, p, winner, mf);
+        MatchFrame mf = matchFrame();
+        if (0 == _count)
+            mf.setLeft(k, p, null, k);
+        else
+            insert(k, p, mf);
         return new PersistentPrioritySearchQueue(
-                newWinner,
+                mf,
                 kcomp,
                 pcomp,
-                // found.val != null ? _count : _count + 1,
+                measure,
                 mf.found ? _count : _count + 1,
                 _meta
         );
@@ -1258,7 +2536,7 @@ public final class PersistentPrioritySearchQueue
     }
 
     public MapEntry entryAt(Object k) {
-        return lookup(k, winner);
+        return lookup(k);
     }
 
     // clojure.lang.Counted
@@ -1274,25 +2552,38 @@ public final class PersistentPrioritySearchQueue
     }
 
     public Object valAt(Object k, Object notFound) {
-        if (null == winner)
+        if (0 == _count)
             return notFound;
+        return lookupPriority(k, wkey, wpriority, wlosers, notFound);
+    }
 
-        if (0 == kcomp.compare(k, winner.key))
-            return winner.priority;
+    Object lookupPriority(Object k, Object wkey, Object wpriority, Loser losers, Object notFound) {
+        if (0 == compareWith(kcomp, k, wkey))
+            return wpriority;
 
-        Loser losers = winner.losers;
         while (null != losers) {
-            if (0 == kcomp.compare(k, losers.key))
+            if (0 == compareWith(kcomp, k, losers.key))
                 return losers.priority;
-            if (0 < kcomp.compare(k, losers.split)) {
-                losers = losers.right;
+            if (0 < compareWith(kcomp, k, losers.split)) {
+                losers = losers.right();
                 continue;
             }
-            losers = losers.left;
+            losers = losers.left();
         }
         return notFound;
     }
 
+    // clojure.lang.IKVReduce
+
+    public Object kvreduce(IFn f, Object init) {
+        if (0 == _count)
+            return init;
+        Object ret = kvreduce(f, init, wkey, wpriority, wlosers);
+        if (RT.isReduced(ret))
+            return ((IDeref) ret).deref();
+        return ret;
+    }
+
     // clojure.lang.IMeta
 
     public IPersistentMap meta() {
@@ -1309,57 +2600,63 @@ public final class PersistentPrioritySearchQueue
         if (i < 0 || i >= _count)
             throw new IndexOutOfBoundsException();
         if (i == _count - 1)
-            return entryAt(winner.ubound);
-        Loser loser = winner.losers;
+            return entryAt(wubound);
+        Loser loser = wlosers;
         while (loser != null) {
-            int rank = size(loser.left);
+            int rank = size(loser.left());
             if (i < rank) {
-                loser = loser.left;
+                loser = loser.left();
                 continue;
             } else if (i > rank) {
                 i -= rank + 1;
-                loser = loser.right;
+                loser = loser.right();
                 continue;
             }
             return entryAt(loser.split);
         }
-        return new MapEntry(winner.key, winner.priority);
+        return new MapEntry(wkey, wpriority);
+    }
+
+    // clojure.lang.IEditableCollection
+
+    public TransientPrioritySearchQueue asTransient() {
+        return new TransientPrioritySearchQueue(this);
     }
 
     // clojure.lang.IObj
 
     public PersistentPrioritySearchQueue withMeta(IPersistentMap meta) {
-        return new PersistentPrioritySearchQueue(kcomp, pcomp, meta);
+        return new PersistentPrioritySearchQueue(this, meta);
     }
 
     // clojure.lang.IPersistentCollection
 
     public PersistentPrioritySearchQueue empty() {
-        return new PersistentPrioritySearchQueue(kcomp, pcomp, _meta);
+        return new PersistentPrioritySearchQueue(kcomp, pcomp, measure, _meta);
     }
 
     // clojure.lang.IPersistentMap
 
     public PersistentPrioritySearchQueue without(Object k) {
-        Box found = new Box(null);
-        return new PersistentPrioritySearchQueue(
-                delete(k, winner, found),
-                kcomp,
-                pcomp,
-                found.val != null ? _count - 1 : _count,
-                _meta
-        );
+        if (0 == _count)
+            return this;
+        MatchFrame mf = matchFrame();
+        delete(k, mf);
+        if (!mf.found)
+            return this;
+        return new PersistentPrioritySearchQueue(mf, kcomp, pcomp, measure, _count - 1, _meta);
     }
 
     public PersistentPrioritySearchQueue assocEx(Object k, Object p) {
         Box found = new Box(null);
-        Winner newWinner = insert(k, p, winner, found);
+        Winner newWinner = insert(k, p, winner(), found);
         if (found.val != null)
             throw new RuntimeException("key already present");
         return new PersistentPrioritySearchQueue(
                 newWinner,
                 kcomp,
                 pcomp,
+                measure,
                 _count + 1,
                 _meta
         );
@@ -1370,17 +2667,26 @@ public final class PersistentPrioritySearchQueue
     public Object peek() {
         if (isEmpty())
             return null;
-        return new MapEntry(winner.key, winner.priority);
+        return new MapEntry(wkey, wpriority);
     }
 
     public PersistentPrioritySearchQueue pop() {
-        return new PersistentPrioritySearchQueue(
-                secondBest(winner.losers, winner.ubound),
-                kcomp,
-                pcomp,
-                _count - 1,
-                _meta
-        );
+        if (0 == _count)
+            throw new IllegalStateException("Can't pop empty queue");
+        MatchFrame mf = new MatchFrame();
+        secondBest(wlosers, wubound, mf);
+        return new PersistentPrioritySearchQueue(mf, kcomp, pcomp, measure, _count - 1, _meta);
+    }
+
+    // clojure.lang.IReduceInit
+
+    public Object reduce(IFn f, Object start) {
+        if (0 == _count)
+            return start;
+        Object ret = reduce(f, start, wkey, wpriority, wlosers);
+        if (RT.isReduced(ret))
+            return ((IDeref) ret).deref();
+        return ret;
     }
 
     // clojure.lang.Reversible
@@ -1388,7 +2694,7 @@ public final class PersistentPrioritySearchQueue
     public ISeq rseq() {
         if (_count == 0)
             return null;
-        return rtraverse(winner.key, winner.priority, winner.losers);
+        return RT.seq(RT.chunkIteratorSeq(reverseIterator()));
     }
 
     // clojure.lang.Seqable
@@ -1396,7 +2702,7 @@ public final class PersistentPrioritySearchQueue
     public ISeq seq() {
         if (_count == 0)
             return null;
-        return traverse(winner.key, winner.priority, winner.losers);
+        return RT.seq(RT.chunkIteratorSeq(iterator()));
     }
 
     // clojure.lang.Sorted
@@ -1410,12 +2716,7 @@ public final class PersistentPrioritySearchQueue
     public ISeq seqFrom(Object k, boolean ascending) {
         if (_count == 0)
             return null;
-        ISeq ret;
-        if (ascending)
-            ret = traverseFrom(k, winner);
-        else
-            ret = rtraverseFrom(k, winner);
-        return RT.seq(ret);
+        return RT.seq(RT.chunkIteratorSeq(iteratorFrom(k, ascending)));
     }
 
     public Object entryKey(Object entry) {
@@ -1429,9 +2730,726 @@ public final class PersistentPrioritySearchQueue
     // Iterable
 
     public Iterator iterator() {
-        if (isEmpty()) {
-            return ((Iterable) PersistentList.EMPTY).iterator();
+        return new EntryIterator(kcomp, winner(), true);
+    }
+
+    public Iterator reverseIterator() {
+        return new EntryIterator(kcomp, winner(), false);
+    }
+
+    public Iterator iteratorFrom(Object key, boolean ascending) {
+        return new EntryIterator(kcomp, winner(), key, ascending);
+    }
+
+    // spliterators, streams
+
+    public Spliterator spliterator() {
+        return new EntrySpliterator(this, winner());
+    }
+
+    public Stream stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    public Stream parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    // NB. the key range is inclusive at both ends, as in atMostRange
+    public Stream rangeStream(Object low, Object high, boolean parallel) {
+        return StreamSupport.stream(
+                new EntrySpliterator(this, winner(), true, low, high, false, null, false),
+                parallel
+        );
+    }
+
+    public Stream atMostStream(Object priority, boolean parallel) {
+        return StreamSupport.stream(
+                new EntrySpliterator(this, winner(), false, null, null, true, priority, false),
+                parallel
+        );
+    }
+
+    public Stream belowStream(Object priority, boolean parallel) {
+        return StreamSupport.stream(
+                new EntrySpliterator(this, winner(), false, null, null, true, priority, true),
+                parallel
+        );
+    }
+
+    public Stream atMostRangeStream(Object low, Object high, Object priority, boolean parallel) {
+        return StreamSupport.stream(
+                new EntrySpliterator(this, winner(), true, low, high, true, priority, false),
+                parallel
+        );
+    }
+
+    public Stream belowRangeStream(Object low, Object high, Object priority, boolean parallel) {
+        return StreamSupport.stream(
+                new EntrySpliterator(this, winner(), true, low, high, true, priority, true),
+                parallel
+        );
+    }
+
+    // iterators
+
+    /**
+     * Priority order iterator over the (immutable) tree. Keeps a binary
+     * min-heap of candidate subtrees, each represented by its winner's key and
+     * priority and its losers; taking the winner of a subtree replaces it with
+     * the subtrees hanging off the path its losers took to the root. No new
+     * tree nodes are allocated. Candidates with equal priorities are taken in
+     * key order, but entries with equal priorities may still be returned in
+     * a different order than by repeated pops.
+     */
+    static final class PriorityIterator implements Iterator {
+
+        final Comparator kcomp;
+        final Comparator pcomp;
+
+        Object[] keys = new Object[16];
+        Object[] priorities = new Object[16];
+        Loser[] losers = new Loser[16];
+        int size;
+
+        PriorityIterator(Comparator kcomp, Comparator pcomp, Winner winner) {
+            this.kcomp = kcomp;
+            this.pcomp = pcomp;
+            if (null != winner) {
+                keys[0] = winner.key;
+                priorities[0] = winner.priority;
+                losers[0] = winner.losers;
+                size = 1;
+            }
+        }
+
+        int compare(int i, int j) {
+            int c = compareWith(pcomp, priorities[i], priorities[j]);
+            if (0 != c)
+                return c;
+            return compareWith(kcomp, keys[i], keys[j]);
+        }
+
+        void swap(int i, int j) {
+            Object key = keys[i];
+            Object priority = priorities[i];
+            Loser loser = losers[i];
+            keys[i] = keys[j];
+            priorities[i] = priorities[j];
+            losers[i] = losers[j];
+            keys[j] = key;
+            priorities[j] = priority;
+            losers[j] = loser;
+        }
+
+        void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (compare(parent, i) <= 0)
+                    return;
+                swap(parent, i);
+                i = parent;
+            }
+        }
+
+        void siftDown(int i) {
+            while (true) {
+                int l = 2 * i + 1;
+                if (l >= size)
+                    return;
+                int m = l + 1 < size && compare(l + 1, l) < 0 ? l + 1 : l;
+                if (compare(i, m) <= 0)
+                    return;
+                swap(i, m);
+                i = m;
+            }
+        }
+
+        void push(Object key, Object priority, Loser loser) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                priorities = Arrays.copyOf(priorities, size * 2);
+                losers = Arrays.copyOf(losers, size * 2);
+            }
+            keys[size] = key;
+            priorities[size] = priority;
+            losers[size] = loser;
+            siftUp(size++);
+        }
+
+        public boolean hasNext() {
+            return size > 0;
+        }
+
+        public Object next() {
+            if (size == 0)
+                throw new NoSuchElementException();
+            Object key = keys[0];
+            Object priority = priorities[0];
+            Loser loser = losers[0];
+            size--;
+            keys[0] = keys[size];
+            priorities[0] = priorities[size];
+            losers[0] = losers[size];
+            keys[size] = null;
+            priorities[size] = null;
+            losers[size] = null;
+            siftDown(0);
+            while (null != loser) {
+                if (compareWith(kcomp, loser.key, loser.split) <= 0) {
+                    push(loser.key, loser.priority, loser.left());
+                    loser = loser.right();
+                } else {
+                    push(loser.key, loser.priority, loser.right());
+                    loser = loser.left();
+                }
+            }
+            return new MapEntry(key, priority);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Key order iterator keeping an explicit stack of pending subtrees, each
+     * represented by its winner's key and priority and its losers. Only the
+     * returned map entries are allocated during iteration.
+     */
+    static final class EntryIterator implements Iterator {
+
+        final Comparator kcomp;
+        final boolean ascending;
+
+        Object[] keys = new Object[16];
+        Object[] priorities = new Object[16];
+        Loser[] losers = new Loser[16];
+        int depth;
+
+        EntryIterator(Comparator kcomp, Winner winner, boolean ascending) {
+            this.kcomp = kcomp;
+            this.ascending = ascending;
+            if (null != winner)
+                push(winner.key, winner.priority, winner.losers);
+        }
+
+        EntryIterator(Comparator kcomp, Winner winner, Object bound, boolean ascending) {
+            this.kcomp = kcomp;
+            this.ascending = ascending;
+            if (null == winner)
+                return;
+            Object key = winner.key;
+            Object priority = winner.priority;
+            Loser loser = winner.losers;
+            while (null != loser) {
+                Object lkey = loser.key;
+                Object lpriority = loser.priority;
+                Object split = loser.split;
+                boolean lleft = compareWith(kcomp, lkey, split) <= 0;
+                if (ascending) {
+                    if (compareWith(kcomp, bound, split) <= 0) {
+                        if (lleft) {
+                            push(key, priority, loser.right());
+                            key = lkey;
+                            priority = lpriority;
+                        } else {
+                            push(lkey, lpriority, loser.right());
+                        }
+                        loser = loser.left();
+                    } else {
+                        if (!lleft) {
+                            key = lkey;
+                            priority = lpriority;
+                        }
+                        loser = loser.right();
+                    }
+                } else {
+                    if (compareWith(kcomp, split, bound) < 0) {
+                        if (lleft) {
+                            push(lkey, lpriority, loser.left());
+                        } else {
+                            push(key, priority, loser.left());
+                            key = lkey;
+                            priority = lpriority;
+                        }
+                        loser = loser.right();
+                    } else {
+                        if (lleft) {
+                            key = lkey;
+                            priority = lpriority;
+                        }
+                        loser = loser.left();
+                    }
+                }
+            }
+            int c = compareWith(kcomp, key, bound);
+            if (ascending ? c >= 0 : c <= 0)
+                push(key, priority, null);
+        }
+
+        void push(Object key, Object priority, Loser loser) {
+            if (depth == keys.length) {
+                keys = Arrays.copyOf(keys, depth * 2);
+                priorities = Arrays.copyOf(priorities, depth * 2);
+                losers = Arrays.copyOf(losers, depth * 2);
+            }
+            keys[depth] = key;
+            priorities[depth] = priority;
+            losers[depth] = loser;
+            depth++;
+        }
+
+        public boolean hasNext() {
+            return depth > 0;
+        }
+
+        public Object next() {
+            if (depth == 0)
+                throw new NoSuchElementException();
+            depth--;
+            Object key = keys[depth];
+            Object priority = priorities[depth];
+            Loser loser = losers[depth];
+            keys[depth] = null;
+            priorities[depth] = null;
+            losers[depth] = null;
+            while (null != loser) {
+                Object lkey = loser.key;
+                Object lpriority = loser.priority;
+                boolean lleft = compareWith(kcomp, lkey, loser.split) <= 0;
+                if (ascending) {
+                    if (lleft) {
+                        push(key, priority, loser.right());
+                        key = lkey;
+                        priority = lpriority;
+                    } else {
+                        push(lkey, lpriority, loser.right());
+                    }
+                    loser = loser.left();
+                } else {
+                    if (lleft) {
+                        push(lkey, lpriority, loser.left());
+                    } else {
+                        push(key, priority, loser.left());
+                        key = lkey;
+                        priority = lpriority;
+                    }
+                    loser = loser.right();
+                }
+            }
+            return new MapEntry(key, priority);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Key order spliterator splitting on subtrees. Without bounds, splits have
+     * exact sizes and traversal uses an EntryIterator; with a key range and/or
+     * a priority bound, subtrees which cannot contain matching entries are
+     * skipped, as in the bounded traversals, and sizes are estimates.
+     */
+    static final class EntrySpliterator implements Spliterator {
+
+        final PersistentPrioritySearchQueue psq;
+        final Comparator kcomp;
+        final Comparator pcomp;
+        final boolean bounded;
+        final boolean hasRange;
+        final Object low;
+        final Object high;
+        final boolean hasPriority;
+        final Object priority;
+        final boolean strict;
+
+        // pending subtrees, the next one in key order last
+        final ArrayList<Winner> pending = new ArrayList<Winner>();
+        EntryIterator iterator;
+        long size;
+
+        EntrySpliterator(PersistentPrioritySearchQueue psq, Winner winner) {
+            this(psq, winner, false, null, null, false, null, false);
+        }
+
+        EntrySpliterator(PersistentPrioritySearchQueue psq,
+                         Winner winner,
+                         boolean hasRange,
+                         Object low,
+                         Object high,
+                         boolean hasPriority,
+                         Object priority,
+                         boolean strict) {
+            this.psq = psq;
+            this.kcomp = psq.kcomp;
+            this.pcomp = psq.pcomp;
+            this.bounded = hasRange || hasPriority;
+            this.hasRange = hasRange;
+            this.low = low;
+            this.high = high;
+            this.hasPriority = hasPriority;
+            this.priority = priority;
+            this.strict = strict;
+            if (null != winner && !excluded(winner))
+                pending.add(winner);
+            this.size = size(winner);
+        }
+
+        EntrySpliterator(EntrySpliterator parent, Winner winner) {
+            this.psq = parent.psq;
+            this.kcomp = parent.kcomp;
+            this.pcomp = parent.pcomp;
+            this.bounded = parent.bounded;
+            this.hasRange = parent.hasRange;
+            this.low = parent.low;
+            this.high = parent.high;
+            this.hasPriority = parent.hasPriority;
+            this.priority = parent.priority;
+            this.strict = parent.strict;
+            pending.add(winner);
+            this.size = size(winner);
+        }
+
+        boolean excluded(Winner winner) {
+            if (!hasPriority)
+                return false;
+            int c = compareWith(pcomp, winner.priority, priority);
+            return strict ? c >= 0 : c > 0;
+        }
+
+        boolean inRange(Object key) {
+            return !hasRange
+                    || (compareWith(kcomp, low, key) <= 0 && compareWith(kcomp, key, high) <= 0);
+        }
+
+        // pushes the parts of the given subtree which may contain matching
+        // entries; returns false if there were none
+        boolean expand(Match match) {
+            Winner left = match.left;
+            Winner right = match.right;
+            boolean hasLeft = !excluded(left)
+                    && (!hasRange || compareWith(kcomp, low, left.ubound) <= 0);
+            boolean hasRight = !excluded(right)
+                    && (!hasRange || compareWith(kcomp, left.ubound, high) < 0);
+            if (hasRight)
+                pending.add(right);
+            if (hasLeft)
+                pending.add(left);
+            return hasLeft || hasRight;
+        }
+
+        public boolean tryAdvance(Consumer action) {
+            if (!bounded) {
+                if (null == iterator) {
+                    if (pending.isEmpty())
+                        return false;
+                    iterator = new EntryIterator(kcomp, pending.remove(0), true);
+                }
+                if (!iterator.hasNext())
+                    return false;
+                size--;
+                action.accept(iterator.next());
+                return true;
+            }
+            while (!pending.isEmpty()) {
+                Winner winner = pending.remove(pending.size() - 1);
+                if (null == winner.losers) {
+                    if (inRange(winner.key)) {
+                        if (size > 0)
+                            size--;
+                        action.accept(new MapEntry(winner.key, winner.priority));
+                        return true;
+                    }
+                    continue;
+                }
+                expand(psq.unplay(winner));
+            }
+            return false;
+        }
+
+        public Spliterator trySplit() {
+            if (null != iterator)
+                return null;
+            if (pending.size() > 1) {
+                Winner next = pending.remove(pending.size() - 1);
+                size = Math.max(0, size - size(next));
+                return new EntrySpliterator(this, next);
+            }
+            while (pending.size() == 1) {
+                Winner winner = pending.get(0);
+                if (null == winner.losers)
+                    return null;
+                pending.clear();
+                Match match = psq.unplay(winner);
+                if (!expand(match))
+                    return null;
+                if (pending.size() == 2) {
+                    Winner left = pending.remove(1);
+                    size = size(match.right);
+                    return new EntrySpliterator(this, left);
+                }
+            }
+            return null;
+        }
+
+        public long estimateSize() {
+            return size;
+        }
+
+        public int characteristics() {
+            int ret = ORDERED | SORTED | DISTINCT | NONNULL | IMMUTABLE;
+            if (!bounded)
+                ret |= SIZED | SUBSIZED;
+            return ret;
+        }
+
+        public Comparator getComparator() {
+            final Comparator kcomp = this.kcomp;
+            return new Comparator() {
+                public int compare(Object x, Object y) {
+                    return compareWith(kcomp, ((Map.Entry) x).getKey(), ((Map.Entry) y).getKey());
+                }
+            };
+        }
+    }
+
+    // serialization proxy
+
+    /**
+     * The serialized form of PersistentPrioritySearchQueue: the comparators,
+     * measure and metadata, followed by the entries in the format of writeTo,
+     * with keys and priorities written using Codec.OBJECT.
+     */
+    public static final class SerializationProxy implements Externalizable {
+
+        private static final long serialVersionUID = 1L;
+
+        PersistentPrioritySearchQueue psq;
+
+        public SerializationProxy() {
+        }
+
+        SerializationProxy(PersistentPrioritySearchQueue psq) {
+            this.psq = psq;
+        }
+
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeObject(psq.kcomp);
+            out.writeObject(psq.pcomp);
+            out.writeObject(psq.measure);
+            out.writeObject(psq._meta);
+            psq.writeTo(out, Codec.OBJECT, Codec.OBJECT);
+        }
+
+        public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+            Comparator kcomp = (Comparator) in.readObject();
+            Comparator pcomp = (Comparator) in.readObject();
+            Measure measure = (Measure) in.readObject();
+            IPersistentMap meta = (IPersistentMap) in.readObject();
+            psq = new PersistentPrioritySearchQueue(kcomp, pcomp, measure, meta)
+                    .readFrom(in, Codec.OBJECT, Codec.OBJECT);
+        }
+
+        Object readResolve() {
+            return psq;
+        }
+    }
+
+    // fork/join tasks
+
+    static final class CombineTask extends RecursiveTask<Winner> {
+
+        final PersistentPrioritySearchQueue psq;
+        final int op;
+        final Winner w1;
+        final Winner w2;
+        final IFn f;
+
+        CombineTask(PersistentPrioritySearchQueue psq, int op, Winner w1, Winner w2, IFn f) {
+            this.psq = psq;
+            this.op = op;
+            this.w1 = w1;
+            this.w2 = w2;
+            this.f = f;
+        }
+
+        protected Winner compute() {
+            return psq.combine(op, w1, w2, f, true);
+        }
+    }
+
+    static final class FoldTask extends RecursiveTask<Object> {
+
+        final PersistentPrioritySearchQueue psq;
+        final Winner winner;
+        final long n;
+        final IFn combinef;
+        final IFn reducef;
+
+        FoldTask(PersistentPrioritySearchQueue psq, Winner winner, long n, IFn combinef, IFn reducef) {
+            this.psq = psq;
+            this.winner = winner;
+            this.n = n;
+            this.combinef = combinef;
+            this.reducef = reducef;
+        }
+
+        protected Object compute() {
+            return psq.fold(winner, n, combinef, reducef);
+        }
+    }
+
+    // transient PSQs
+
+    public static final class TransientPrioritySearchQueue
+            extends AFn
+            implements ITransientMap {
+
+        final AtomicReference<Thread> edit;
+        final PersistentPrioritySearchQueue template;
+        final MatchFrame mf;
+        int _count;
+
+        TransientPrioritySearchQueue(PersistentPrioritySearchQueue psq) {
+            this.edit = new AtomicReference<Thread>(Thread.currentThread());
+            this.template = psq.empty();
+            this.mf = new MatchFrame(edit);
+            this._count = psq._count;
+            if (0 != psq._count)
+                mf.setLeft(psq.wkey, psq.wpriority, psq.wlosers, psq.wubound);
+        }
+
+        void ensureEditable() {
+            if (null == edit.get())
+                throw new IllegalAccessError("Transient used after persistent! call");
+        }
+
+        // clojure.lang.ITransientAssociative
+
+        public TransientPrioritySearchQueue assoc(Object k, Object p) {
+            ensureEditable();
+            if (!mf.hasLeft) {
+                mf.setLeft(k, p, null, k);
+                _count = 1;
+                return this;
+            }
+            mf.found = false;
+            template.insert(k, p, mf);
+            if (!mf.found)
+                _count++;
+            return this;
+        }
+
+        public boolean containsKey(Object k) {
+            return this != valAt(k, this);
+        }
+
+        public MapEntry entryAt(Object k) {
+            Object p = valAt(k, this);
+            if (this == p)
+                return null;
+            return new MapEntry(k, p);
+        }
+
+        // clojure.lang.ITransientMap
+
+        public TransientPrioritySearchQueue without(Object k) {
+            ensureEditable();
+            if (!mf.hasLeft)
+                return this;
+            mf.found = false;
+            template.delete(k, mf);
+            if (mf.found)
+                _count--;
+            return this;
+        }
+
+        // priority queue ops
+
+        public Object peek() {
+            ensureEditable();
+            if (!mf.hasLeft)
+                return null;
+            return new MapEntry(mf.lkey, mf.lpriority);
+        }
+
+        public TransientPrioritySearchQueue pop() {
+            ensureEditable();
+            if (!mf.hasLeft)
+                throw new IllegalStateException("Can't pop empty queue");
+            Loser losers = mf.llosers;
+            Object ubound = mf.lubound;
+            mf.clear();
+            template.secondBest(losers, ubound, mf);
+            _count--;
+            return this;
+        }
+
+        public PersistentPrioritySearchQueue persistent() {
+            ensureEditable();
+            edit.set(null);
+            return new PersistentPrioritySearchQueue(
+                    mf,
+                    template.kcomp,
+                    template.pcomp,
+                    template.measure,
+                    _count,
+                    template._meta
+            );
+        }
+
+        // clojure.lang.ITransientCollection
+
+        public TransientPrioritySearchQueue conj(Object o) {
+            ensureEditable();
+            if (o instanceof Map.Entry) {
+                Map.Entry e = (Map.Entry) o;
+                return assoc(e.getKey(), e.getValue());
+            } else if (o instanceof IPersistentVector) {
+                IPersistentVector v = (IPersistentVector) o;
+                if (v.count() != 2)
+                    throw new IllegalArgumentException(
+                            "Vector arg to map conj must be a pair"
+                    );
+                return assoc(v.nth(0), v.nth(1));
+            }
+            for (ISeq es = RT.seq(o); es != null; es = es.next()) {
+                Map.Entry e = (Map.Entry) es.first();
+                assoc(e.getKey(), e.getValue());
+            }
+            return this;
+        }
+
+        // clojure.lang.ILookup
+
+        public Object valAt(Object k) {
+            return valAt(k, null);
+        }
+
+        public Object valAt(Object k, Object notFound) {
+            ensureEditable();
+            if (!mf.hasLeft)
+                return notFound;
+            return template.lookupPriority(k, mf.lkey, mf.lpriority, mf.llosers, notFound);
+        }
+
+        // clojure.lang.Counted
+
+        public int count() {
+            ensureEditable();
+            return _count;
+        }
+
+        // clojure.lang.IFn
+
+        public Object invoke(Object k) {
+            return valAt(k);
+        }
+
+        public Object invoke(Object k, Object notFound) {
+            return valAt(k, notFound);
         }
-        return ((Iterable) seq()).iterator();
     }
 }
@@ -0,0 +1,380 @@
+package psq;
+
+import clojure.lang.AFn;
+import clojure.lang.Counted;
+import clojure.lang.IDeref;
+import clojure.lang.ILookup;
+import clojure.lang.ISeq;
+import clojure.lang.LazySeq;
+import clojure.lang.MapEntry;
+import clojure.lang.PersistentVector;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A mutable, thread-safe priority search queue whose key space is
+ * partitioned across a number of PersistentPrioritySearchQueues (shards),
+ * each updated by compare-and-set, so that writers to different key ranges
+ * never contend.
+ *
+ * Shard i holds the keys k with bounds[i - 1] <= k < bounds[i]. Global peek
+ * and pop consult the top entry of each shard, which the shard roots store
+ * inline; priority-bounded traversals visit the shards overlapping the given
+ * key range in order. rebalance redistributes the entries evenly using join
+ * and split; while it runs, shards are sealed and writers wait for the new
+ * layout, whereas readers keep using the sealed shards.
+ */
+
+public final class ShardedPrioritySearchQueue
+        implements Counted, IDeref, ILookup {
+
+    static final class Sealed {
+
+        final PersistentPrioritySearchQueue psq;
+
+        Sealed(PersistentPrioritySearchQueue psq) {
+            this.psq = psq;
+        }
+    }
+
+    static final class Layout {
+
+        final Object[] bounds;
+        // PersistentPrioritySearchQueues, or Sealed ones
+        final AtomicReferenceArray<Object> shards;
+
+        Layout(Object[] bounds, PersistentPrioritySearchQueue[] psqs) {
+            this.bounds = bounds;
+            this.shards = new AtomicReferenceArray<Object>(psqs);
+        }
+    }
+
+    // NB. the bound of each of the trailing shards of a layout with fewer
+    // entries than shards; these shards stay empty until rebalanced
+    static final Object UNBOUNDED = new Object();
+
+    final PersistentPrioritySearchQueue template;
+
+    volatile Layout layout;
+
+    /**
+     * Distributes the entries of init across n shards of equal size. If init
+     * has fewer than n entries, the trailing shards start out empty.
+     */
+    public ShardedPrioritySearchQueue(PersistentPrioritySearchQueue init, int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("Shard count must be positive: " + n);
+        this.template = init.empty().withMeta(null);
+        this.layout = partition(init.withMeta(null), n);
+    }
+
+    /**
+     * Distributes the entries of init across bounds.length + 1 shards, with
+     * keys < bounds[0] in the first one, keys >= bounds[i - 1] and < bounds[i]
+     * in the (i + 1)th and so on. bounds must be in strictly ascending order.
+     */
+    public ShardedPrioritySearchQueue(PersistentPrioritySearchQueue init, Object[] bounds) {
+        this.template = init.empty().withMeta(null);
+        for (int i = 1; i < bounds.length; i++)
+            if (PersistentPrioritySearchQueue.compareWith(template.kcomp, bounds[i - 1], bounds[i]) >= 0)
+                throw new IllegalArgumentException(
+                        String.format("Bounds not in ascending order: %s, %s", bounds[i - 1], bounds[i])
+                );
+        this.layout = partition(init.withMeta(null), bounds.clone());
+    }
+
+    // layout
+
+    Layout partition(PersistentPrioritySearchQueue psq, int n) {
+        int count = psq.count();
+        // the number of non-empty shards
+        int m = Math.min(n, count);
+        Object[] bounds = new Object[n - 1];
+        for (int i = 1; i < n; i++)
+            if (i < m)
+                bounds[i - 1] = ((MapEntry) psq.nth((int) ((long) i * count / m))).key();
+            else
+                bounds[i - 1] = UNBOUNDED;
+        return partition(psq, bounds);
+    }
+
+    Layout partition(PersistentPrioritySearchQueue psq, Object[] bounds) {
+        PersistentPrioritySearchQueue[] psqs = new PersistentPrioritySearchQueue[bounds.length + 1];
+        for (int i = 0; i < bounds.length; i++) {
+            if (UNBOUNDED == bounds[i]) {
+                psqs[i] = psq;
+                psq = template;
+                continue;
+            }
+            PersistentVector split = psq.split(bounds[i]);
+            psqs[i] = (PersistentPrioritySearchQueue) split.nth(0);
+            psq = (PersistentPrioritySearchQueue) split.nth(2);
+            MapEntry entry = (MapEntry) split.nth(1);
+            if (null != entry)
+                psq = psq.assoc(entry.key(), entry.val());
+        }
+        psqs[bounds.length] = psq;
+        return new Layout(bounds, psqs);
+    }
+
+    // index of the shard holding key
+    int shardFor(Object[] bounds, Object key) {
+        int lo = 0;
+        int hi = bounds.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (UNBOUNDED != bounds[mid]
+                    && PersistentPrioritySearchQueue.compareWith(template.kcomp, bounds[mid], key) <= 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    static PersistentPrioritySearchQueue unseal(Object shard) {
+        if (shard instanceof Sealed)
+            return ((Sealed) shard).psq;
+        return (PersistentPrioritySearchQueue) shard;
+    }
+
+    PersistentPrioritySearchQueue[] shards(Layout l) {
+        int n = l.shards.length();
+        PersistentPrioritySearchQueue[] psqs = new PersistentPrioritySearchQueue[n];
+        for (int i = 0; i < n; i++)
+            psqs[i] = unseal(l.shards.get(i));
+        return psqs;
+    }
+
+    /**
+     * Redistributes the entries evenly across the current number of shards.
+     */
+    public void rebalance() {
+        rebalance(layout.shards.length());
+    }
+
+    /**
+     * Redistributes the entries evenly across n shards. If there are fewer
+     * than n entries, the current bounds are kept if there are n shards
+     * already, otherwise the trailing shards are left empty.
+     */
+    public synchronized void rebalance(int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("Shard count must be positive: " + n);
+        Layout l = layout;
+        int m = l.shards.length();
+        Sealed[] sealed = new Sealed[m];
+        for (int i = 0; i < m; i++) {
+            Object shard;
+            do {
+                shard = l.shards.get(i);
+            } while (!(shard instanceof Sealed)
+                    && !l.shards.compareAndSet(i, shard, new Sealed((PersistentPrioritySearchQueue) shard)));
+            sealed[i] = (Sealed) l.shards.get(i);
+        }
+        boolean done = false;
+        try {
+            PersistentPrioritySearchQueue.Winner winner = null;
+            int count = 0;
+            for (int i = 0; i < m; i++) {
+                winner = template.join(winner, sealed[i].psq.winner());
+                count += sealed[i].psq.count();
+            }
+            PersistentPrioritySearchQueue psq =
+                    new PersistentPrioritySearchQueue(winner, template.kcomp, template.pcomp, template.measure, count, null);
+            if (count < n && l.bounds.length == n - 1)
+                layout = partition(psq, l.bounds);
+            else
+                layout = partition(psq, n);
+            done = true;
+        } finally {
+            // NB. if the comparator throws, the old layout is reopened, so
+            // that writers waiting on the sealed shards can proceed
+            if (!done)
+                for (int i = 0; i < m; i++)
+                    l.shards.compareAndSet(i, sealed[i], sealed[i].psq);
+        }
+    }
+
+    /**
+     * Returns the number of shards.
+     */
+    public int shardCount() {
+        return layout.shards.length();
+    }
+
+    // updates
+
+    public void assoc(Object key, Object priority) {
+        while (true) {
+            Layout l = layout;
+            int i = shardFor(l.bounds, key);
+            Object shard = l.shards.get(i);
+            if (shard instanceof Sealed) {
+                Thread.yield();
+                continue;
+            }
+            PersistentPrioritySearchQueue psq = (PersistentPrioritySearchQueue) shard;
+            if (l.shards.compareAndSet(i, psq, psq.assoc(key, priority)))
+                return;
+        }
+    }
+
+    public void without(Object key) {
+        while (true) {
+            Layout l = layout;
+            int i = shardFor(l.bounds, key);
+            Object shard = l.shards.get(i);
+            if (shard instanceof Sealed) {
+                Thread.yield();
+                continue;
+            }
+            PersistentPrioritySearchQueue psq = (PersistentPrioritySearchQueue) shard;
+            PersistentPrioritySearchQueue ret = psq.without(key);
+            if (ret == psq || l.shards.compareAndSet(i, psq, ret))
+                return;
+        }
+    }
+
+    /**
+     * Removes the entry with the lowest priority across all shards and
+     * returns it, or returns null if the queue is empty.
+     *
+     * NB. this is not linearizable. The shards are read one by one, and the
+     * removal only checks that the shard the entry was found in has not
+     * changed since (the search is repeated otherwise). An entry with a
+     * lower priority added to another shard during the scan may therefore be
+     * passed over, and null may be returned although entries were added
+     * concurrently. Once updates stop, the entry removed is always the top
+     * one.
+     */
+    public Object pop() {
+        outer:
+        while (true) {
+            Layout l = layout;
+            int best = -1;
+            PersistentPrioritySearchQueue bestPsq = null;
+            for (int i = 0; i < l.shards.length(); i++) {
+                Object shard = l.shards.get(i);
+                if (shard instanceof Sealed) {
+                    Thread.yield();
+                    continue outer;
+                }
+                PersistentPrioritySearchQueue psq = (PersistentPrioritySearchQueue) shard;
+                if (0 != psq._count
+                        && (null == bestPsq
+                            || PersistentPrioritySearchQueue.compareWith(template.pcomp, psq.wpriority, bestPsq.wpriority) < 0)) {
+                    best = i;
+                    bestPsq = psq;
+                }
+            }
+            if (null == bestPsq)
+                return null;
+            if (l.shards.compareAndSet(best, bestPsq, bestPsq.pop()))
+                return bestPsq.peek();
+        }
+    }
+
+    // reads
+
+    // NB. like pop, reads the shards one by one, so the result need not have
+    // been the top entry at any single point in time under concurrent updates
+    public Object peek() {
+        PersistentPrioritySearchQueue best = null;
+        for (PersistentPrioritySearchQueue psq : shards(layout))
+            if (0 != psq._count
+                    && (null == best
+                        || PersistentPrioritySearchQueue.compareWith(template.pcomp, psq.wpriority, best.wpriority) < 0))
+                best = psq;
+        if (null == best)
+            return null;
+        return best.peek();
+    }
+
+    public ISeq atMost(Object priority) {
+        PersistentPrioritySearchQueue[] psqs = shards(layout);
+        return traverse(psqs, 0, psqs.length, false, null, null, priority, false);
+    }
+
+    public ISeq below(Object priority) {
+        PersistentPrioritySearchQueue[] psqs = shards(layout);
+        return traverse(psqs, 0, psqs.length, false, null, null, priority, true);
+    }
+
+    // NB. the key range is inclusive at both ends
+    public ISeq atMostRange(Object low, Object high, Object priority) {
+        Layout l = layout;
+        return traverse(shards(l), shardFor(l.bounds, low), shardFor(l.bounds, high) + 1,
+                        true, low, high, priority, false);
+    }
+
+    public ISeq belowRange(Object low, Object high, Object priority) {
+        Layout l = layout;
+        return traverse(shards(l), shardFor(l.bounds, low), shardFor(l.bounds, high) + 1,
+                        true, low, high, priority, true);
+    }
+
+    // lazily concatenates the traversals of psqs[from] to psqs[to - 1]
+    static ISeq traverse(final PersistentPrioritySearchQueue[] psqs,
+                         final int from,
+                         final int to,
+                         final boolean ranged,
+                         final Object low,
+                         final Object high,
+                         final Object priority,
+                         final boolean strict) {
+        if (from >= to)
+            return null;
+        PersistentPrioritySearchQueue psq = psqs[from];
+        ISeq seq;
+        if (ranged)
+            seq = strict ? psq.belowRange(low, high, priority) : psq.atMostRange(low, high, priority);
+        else
+            seq = strict ? psq.below(priority) : psq.atMost(priority);
+        return PersistentPrioritySearchQueue.concat(
+                seq,
+                new LazySeq(new AFn() {
+                    public ISeq invoke() {
+                        return traverse(psqs, from + 1, to, ranged, low, high, priority, strict);
+                    }
+                })
+        );
+    }
+
+    // clojure.lang.Counted
+
+    public int count() {
+        int ret = 0;
+        for (PersistentPrioritySearchQueue psq : shards(layout))
+            ret += psq._count;
+        return ret;
+    }
+
+    // clojure.lang.IDeref
+
+    /**
+     * Returns the contents of all shards joined into one
+     * PersistentPrioritySearchQueue. The shards are read one by one, so the
+     * result is not atomic with respect to concurrent updates.
+     */
+    public PersistentPrioritySearchQueue deref() {
+        PersistentPrioritySearchQueue.Winner winner = null;
+        int count = 0;
+        for (PersistentPrioritySearchQueue psq : shards(layout)) {
+            winner = template.join(winner, psq.winner());
+            count += psq._count;
+        }
+        return new PersistentPrioritySearchQueue(winner, template.kcomp, template.pcomp, template.measure, count, null);
+    }
+
+    // clojure.lang.ILookup
+
+    public Object valAt(Object key) {
+        return valAt(key, null);
+    }
+
+    public Object valAt(Object key, Object notFound) {
+        Layout l = layout;
+        return unseal(l.shards.get(shardFor(l.bounds, key))).valAt(key, notFound);
+    }
+}
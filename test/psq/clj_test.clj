@@ -1,6 +1,7 @@
 (ns psq.clj-test
   (:use clojure.test)
   (:require [psq.clj :as psq]
+            [clojure.core.reducers :as r]
             [clojure.test.check.clojure-test :refer [defspec]]
             [clojure.test.check.generators :as gen]
             [clojure.test.check.properties :as prop]
@@ -24,6 +25,12 @@
                       igen igen {:ordered? true :base (sorted-map-by >)}))
 
 
+(deftest collection-check-long
+  (cc/assert-map-like 1000
+                      (psq/long-psqueue)
+                      igen igen {:ordered? true :base (sorted-map)}))
+
+
 (def psqgen
   (gen/bind
     (gen/sorted-set igen)
@@ -62,24 +69,24 @@
   [^Comparator kcomp ^psq.PersistentPrioritySearchQueue$Loser loser]
   (if (nil? loser)
     #{}
-    (let [lkey (.-key loser)
-          lsplit (.-split loser)
-          lentry (MapEntry. lkey (.-priority loser))]
+    (let [lkey (.key loser)
+          lsplit (.split loser)
+          lentry (MapEntry. lkey (.priority loser))]
       (conj (loser-node-set kcomp
                             (if (<= (.compare kcomp lkey lsplit) 0)
-                              (.-left loser)
-                              (.-right loser)))
+                              (.left loser)
+                              (.right loser)))
             lentry))))
 
 (defn loser-set [^psq.PersistentPrioritySearchQueue$Loser loser]
   (if (nil? loser)
     #{}
     (into #{loser}
-          (concat (loser-set (.-left loser))
-                  (loser-set (.-right loser))))))
+          (concat (loser-set (.left loser))
+                  (loser-set (.right loser))))))
 
 (defn loser->entry [^psq.PersistentPrioritySearchQueue$Loser loser]
-  (MapEntry. (.-key loser) (.-priority loser)))
+  (MapEntry. (.key loser) (.priority loser)))
 
 (defn satisfies-invariant? [^psq.PersistentPrioritySearchQueue psq]
   (if (empty? psq)
@@ -89,7 +96,7 @@
           k< #(neg? (.compare kcomp %1 %2))
           k<= #(<= (.compare kcomp %1 %2) 0)
           p<= #(<= (.compare pcomp %1 %2) 0)
-          winner (.-winner psq)
+          winner (.winner psq)
           wkey (.-key winner)
           wpriority (.-priority winner)
           wlosers (.-losers winner)
@@ -99,7 +106,7 @@
           wkeyset (conj (set (map key wlentries)) wkey)]
       (and (every? #(p<= wpriority (val %)) wlentries)
            (every? (fn [^psq.PersistentPrioritySearchQueue$Loser loser]
-                     (every? #(p<= (.-priority loser) (val %))
+                     (every? #(p<= (.priority loser) (val %))
                              (loser-node-set kcomp loser)))
                    wlset)
            (k<= wkey wubound)
@@ -107,15 +114,15 @@
            (or (== wkey wubound)
                (some #(== % wubound) (map key wlentries)))
            (every? (fn [^psq.PersistentPrioritySearchQueue$Loser loser]
-                     (and (every? #(k<= (key %) (.-split loser))
+                     (and (every? #(k<= (key %) (.split loser))
                                   (map loser->entry
-                                       (loser-set (.-left loser))))
-                          (every? #(k< (.-split loser) (key %))
+                                       (loser-set (.left loser))))
+                          (every? #(k< (.split loser) (key %))
                                   (map loser->entry
-                                       (loser-set (.-right loser))))))
+                                       (loser-set (.right loser))))))
                    wlset)
            (every? (fn [^psq.PersistentPrioritySearchQueue$Loser loser]
-                     (contains? wkeyset (.-split loser)))
+                     (contains? wkeyset (.split loser)))
                    wlset)
            (== (count wkeyset) (inc (count wlset)))))))
 
@@ -144,6 +151,33 @@
       (satisfies-invariant? psq))))
 
 
+;; NB. the transients built here start out from psqs generated by psqgen, so
+;; they operate on trees containing both shared and freshly allocated nodes
+(defspec check-transient 100
+  (prop/for-all [m psqgen
+                 actions (gen/vector
+                           (gen/one-of
+                             [(gen/tuple (gen/return :assoc) igen igen)
+                              (gen/tuple (gen/return :dissoc) igen)]))]
+    (let [before (vec m)
+          apply-action (fn [m [op k p]]
+                         (case op
+                           :assoc (assoc m k p)
+                           :dissoc (dissoc m k)))
+          apply-action! (fn [t [op k p]]
+                          (case op
+                            :assoc (assoc! t k p)
+                            :dissoc (dissoc! t k)))
+          expected (reduce apply-action (into (sorted-map) m) actions)
+          t (reduce apply-action! (transient m) actions)
+          cnt (count t)
+          after (persistent! t)]
+      (and (= before (vec m))
+           (= expected after)
+           (== (count expected) cnt (count after))
+           (satisfies-invariant? after)))))
+
+
 (defspec check-contains? 100
   (prop/for-all [m (gen/map igen igen)
                  k igen]
@@ -242,6 +276,388 @@
            (satisfies-invariant? r)))))
 
 
+(defspec check-positional-slicing 100
+  (prop/for-all [m psqgen
+                 i gen/int
+                 j gen/nat
+                 start igen
+                 end igen
+                 start-test (gen/elements [> >=])
+                 end-test (gen/elements [< <=])]
+    (let [sm (into (sorted-map) m)
+          [start end] (sort [start end])
+          [l r] (psq/split-at-index m i)
+          from (min (max i 0) (count m))
+          to (min (+ from j) (count m))
+          sliced (psq/slice m from to)]
+      (and (= (seq (take i sm)) (seq l) (seq (psq/take-n m i)))
+           (= (seq (drop i sm)) (seq r) (seq (psq/drop-n m i)))
+           (= (seq (->> sm (drop from) (take (- to from)))) (seq sliced))
+           (every? satisfies-invariant? [l r sliced])
+           (== (count (subseq sm start-test start end-test end))
+               (psq/count-range m start-test start end-test end))
+           (== (count (subseq sm >= start <= end))
+               (psq/count-range m start end))))))
+
+
+(def sum-of-priorities
+  (psq/measure 0 (fn [_ p] p) +))
+
+
+(deftest combining-checks-measures
+  (let [m1 (psq/psqueue 1 1 2 2)
+        m2 (psq/psqueue 3 3 4 4)
+        measured1 (psq/with-measure m1 sum-of-priorities)
+        measured2 (psq/with-measure m2 (psq/measure 0 (fn [_ p] p) +))]
+    (doseq [[x y] [[m1 measured2] [measured1 m2] [measured1 measured2]]]
+      (is (thrown? IllegalArgumentException (psq/join x y)))
+      (is (thrown? IllegalArgumentException (psq/union x y)))
+      (is (thrown? IllegalArgumentException (psq/intersection x y)))
+      (is (thrown? IllegalArgumentException (psq/difference x y))))
+    (is (= sum-of-priorities (psq/measure 0 (.-f ^psq.FnMeasure sum-of-priorities) +)))
+    (is (== 10 (psq/measure-range
+                 (psq/union measured1 (psq/with-measure m2 sum-of-priorities)))))))
+
+
+(defspec check-measure 100
+  (prop/for-all [m psqgen
+                 actions (gen/vector
+                           (gen/one-of
+                             [(gen/tuple (gen/return :assoc) igen igen)
+                              (gen/tuple (gen/return :dissoc) igen)
+                              (gen/tuple (gen/return :pop))]))
+                 start igen
+                 end igen]
+    (let [measured (psq/with-measure m sum-of-priorities)
+          apply-action (fn [m [op k p]]
+                         (case op
+                           :assoc (assoc m k p)
+                           :dissoc (dissoc m k)
+                           :pop (if (empty? m) m (pop m))))
+          m' (reduce apply-action measured actions)
+          t (persistent! (reduce (fn [t [op k p]]
+                                   (case op
+                                     :assoc (assoc! t k p)
+                                     :dissoc (dissoc! t k)
+                                     :pop t))
+                                 (transient measured)
+                                 actions))
+          [start end] (sort [start end])
+          sum (fn [entries] (reduce + 0 (map val entries)))]
+      (and (== (sum m) (psq/measure-range measured))
+           (every? (fn [q]
+                     (and (== (sum q) (psq/measure-range q))
+                          (== (sum (subseq q >= start <= end))
+                              (psq/measure-range q start end))
+                          (satisfies-invariant? q)))
+                   [m' t (first (psq/split m' start))
+                    (psq/subrange m' >= start <= end)
+                    (psq/union m' t)
+                    (second (psq/pop-n m' 3))
+                    (second (psq/delete<= m' 0))])))))
+
+
+(defspec check-join 100
+  (prop/for-all [m psqgen
+                 k igen]
+    (let [m (with-meta m {:foo 1})
+          [l e r] (psq/split m k)
+          l (with-meta l {:foo 1})
+          joined (psq/join (cond-> l e (conj e)) r)]
+      (and (= m joined)
+           (= {:foo 1} (meta joined))
+           (satisfies-invariant? joined)
+           (= (some-> (peek m) val) (some-> (peek joined) val))
+           (or (empty? l)
+               (empty? r)
+               (try (psq/join r l) false
+                    (catch IllegalArgumentException _ true)))))))
+
+
+(deftest join-checks-comparators
+  (is (thrown? IllegalArgumentException
+               (psq/join (psq/psqueue 1 1) (psq/psqueue-by compare > 2 2))))
+  (is (thrown? IllegalArgumentException
+               (psq/join (psq/psqueue-by > compare 2 2) (psq/psqueue 1 1))))
+  (is (= (psq/psqueue-by > > 2 2 1 1)
+         (psq/join (psq/psqueue-by > > 2 2) (psq/psqueue-by > > 1 1)))))
+
+
+(defspec check-dissoc-range 100
+  (prop/for-all [m psqgen
+                 start igen
+                 end igen
+                 start-test (gen/elements [> >=])
+                 end-test (gen/elements [< <=])]
+    (let [m (with-meta m {:foo 1})
+          sm (into (sorted-map) m)
+          [start end] (sort [start end])
+          removed (subseq sm start-test start end-test end)
+          expected (apply dissoc sm (map key removed))
+          m' (psq/dissoc-range m start-test start end-test end)]
+      (and (= expected m')
+           (= {:foo 1} (meta m'))
+           (satisfies-invariant? m')
+           (= (apply dissoc sm (map key (subseq sm >= start <= end)))
+              (psq/dissoc-range m start end))))))
+
+
+(defspec check-set-operations 100
+  (prop/for-all [m1 psqgen
+                 m2 psqgen]
+    (let [s1 (into (sorted-map) m1)
+          s2 (into (sorted-map) m2)
+          u (psq/union m1 m2)
+          uw (psq/union-with - m1 m2)
+          i (psq/intersection m1 m2)
+          iw (psq/intersection-with - m1 m2)
+          d (psq/difference m1 m2)]
+      (and (= (merge s1 s2) u)
+           (= (merge-with - s1 s2) uw)
+           (= (select-keys s2 (keys s1)) i)
+           (= (into {} (map (fn [[k p]] [k (- p (s2 k))]))
+                    (select-keys s1 (keys s2)))
+              iw)
+           (= (apply dissoc s1 (keys s2)) d)
+           (every? satisfies-invariant? [u uw i iw d])))))
+
+
+(defspec check-set-operations-by 100
+  (prop/for-all [m1 (psqgen-by > >)
+                 m2 (psqgen-by > >)]
+    (let [u (psq/union-with - m1 m2)
+          i (psq/intersection m1 m2)
+          d (psq/difference m1 m2)]
+      (and (= (merge-with - (into {} m1) m2) u)
+           (= (select-keys (into {} m2) (keys m1)) i)
+           (= (apply dissoc (into {} m1) (keys m2)) d)
+           (every? satisfies-invariant? [u i d])))))
+
+
+(deftest parallel-set-operations
+  (let [pool (java.util.concurrent.ForkJoinPool/commonPool)
+        ^psq.PersistentPrioritySearchQueue m1
+        (psq/psq (map vector (range 0 40000 2) (shuffle (range 20000))))
+        ^psq.PersistentPrioritySearchQueue m2
+        (psq/psq (map vector (range 0 40000 3) (shuffle (range 13334))))]
+    (is (= (psq/union-with + m1 m2) (.union m1 m2 + pool)))
+    (is (= (psq/intersection m1 m2) (.intersection m1 m2 nil pool)))
+    (is (= (psq/difference m1 m2) (.difference m1 m2 pool)))
+    (is (satisfies-invariant? (.union m1 m2 + pool)))))
+
+
+(deftest concurrent-updates
+  (let [^psq.ConcurrentPrioritySearchQueue q
+        (psq/concurrent-psq (psq/psq (map vector (range 1000) (range 1000))))
+        writers (doall
+                  (for [t (range 8)]
+                    (future
+                      (doseq [k (range (+ 1000 t) 9000 8)]
+                        (.assoc q k (+ k 10000))
+                        (when (even? k)
+                          (.without q k))))))
+        poppers (doall
+                  (for [_ (range 4)]
+                    (future
+                      (loop [popped []]
+                        (if (< (count popped) 250)
+                          (recur (if-let [e (.pop q)] (conj popped e) popped))
+                          popped)))))
+        _ (run! deref writers)
+        popped (mapcat deref poppers)
+        m @q]
+    ;; NB. the new entries have higher priorities than the initial ones, so
+    ;; exactly the initial entries are popped
+    (is (= (into (sorted-map) (map vector (range 1000) (range 1000)))
+           (into (sorted-map) popped)))
+    (is (= (into (into (sorted-map) (map vector (range 1000) (range 1000)))
+                 (map vector (range 1001 9000 2) (map #(+ % 10000) (range 1001 9000 2))))
+           (into (sorted-map) (concat popped m))))
+    (is (== (count m) (count q)))
+    (is (= (peek m) (.peek q)))
+    (is (satisfies-invariant? m))
+    (is (thrown? ClassCastException (.assoc q :foo 1)))
+    (is (= m @q))))
+
+
+(defspec check-sharded-psq 100
+  (prop/for-all [m psqgen
+                 n (gen/choose 1 8)
+                 p igen
+                 low igen
+                 high igen]
+    (let [^psq.ShardedPrioritySearchQueue q (psq/sharded-psq m n)
+          [low high] (sort [low high])]
+      (and (= m @q)
+           (== n (.shardCount q))
+           (== (count m) (count q))
+           (every? #(= (get m %) (get q %)) (concat (keys m) [low high]))
+           (= (some-> (peek m) val) (some-> (.peek q) val))
+           (= (psq/seq<= m p) (.atMost q p))
+           (= (psq/seq< m p) (.below q p))
+           (= (psq/subseq<= m p >= low <= high) (.atMostRange q low high p))
+           (= (psq/subseq< m p >= low <= high) (.belowRange q low high p))))))
+
+
+(deftest sharded-psq-shard-count
+  (let [^psq.ShardedPrioritySearchQueue q (psq/sharded-psq (psq/psqueue) 4)]
+    (is (== 4 (.shardCount q)))
+    (doseq [k (range 10)]
+      (.assoc q k (- k)))
+    (is (= (psq/psq (map vector (range 10) (map - (range 10)))) @q))
+    (.rebalance q)
+    (is (== 4 (.shardCount q)))
+    (dotimes [_ 8]
+      (.pop q))
+    (.rebalance q)
+    (is (== 4 (.shardCount q)))
+    (is (= (psq/psq [[0 0] [1 -1]]) @q))
+    (.rebalance q 6)
+    (is (== 6 (.shardCount q)))
+    (is (= [1 -1] (vec (.pop q))))
+    (is (= [0 0] (vec (.pop q))))
+    (is (nil? (.pop q)))
+    (.assoc q 5 5)
+    (is (= {5 5} @q))))
+
+
+(deftest sharded-psq-failed-rebalance
+  (let [broken (atom false)
+        kcomp (fn [x y]
+                (if @broken
+                  (throw (IllegalStateException. "broken comparator"))
+                  (compare x y)))
+        ^psq.ShardedPrioritySearchQueue q
+        (psq/sharded-psq (psq/psq-by kcomp compare (map vector (range 100) (range 100))) 4)]
+    (reset! broken true)
+    (is (thrown? IllegalStateException (.rebalance q 2)))
+    (reset! broken false)
+    (is (== 4 (.shardCount q)))
+    (.assoc q 100 100)
+    (.without q 0)
+    (is (= [1 1] (vec (.pop q))))
+    (.rebalance q 2)
+    (is (== 2 (.shardCount q)))
+    (is (= (psq/psq (map vector (range 2 101) (range 2 101))) @q))))
+
+
+(deftest concurrent-update-errors
+  (let [pcomp (fn [x y]
+                (if (or (neg? x) (neg? y))
+                  (throw (AssertionError. "negative priority"))
+                  (compare x y)))
+        ^psq.ConcurrentPrioritySearchQueue q
+        (psq/concurrent-psq (psq/psqueue-by compare pcomp 0 0))
+        writers (doall
+                  (for [t (range 8)]
+                    (future
+                      (doseq [k (range (+ 1 t) 2000 8)]
+                        (try
+                          (.assoc q k (if (zero? (mod k 3)) -1 k))
+                          (catch AssertionError _))))))]
+    (is (every? #(not= ::timeout (deref % 10000 ::timeout)) writers))
+    (is (thrown? AssertionError (.assoc q 2000 -1)))
+    (is (= (into (sorted-map)
+                 (map (juxt identity identity)
+                      (remove #(and (pos? %) (zero? (mod % 3))) (range 2000))))
+           (into (sorted-map) @q)))))
+
+
+(deftest sharded-updates
+  (let [^psq.ShardedPrioritySearchQueue q
+        (psq/sharded-psq (psq/psq (map vector (range 1000) (range 1000))) 8)
+        writers (doall
+                  (for [t (range 8)]
+                    (future
+                      (doseq [k (range (+ 1000 t) 9000 8)]
+                        (.assoc q k (+ k 10000))
+                        (when (even? k)
+                          (.without q k))))))
+        poppers (doall
+                  (for [_ (range 4)]
+                    (future
+                      (loop [popped []]
+                        (if (< (count popped) 250)
+                          (recur (if-let [e (.pop q)] (conj popped e) popped))
+                          popped)))))
+        rebalancer (future
+                     (dotimes [i 20]
+                       (.rebalance q (inc (mod i 8)))))
+        _ (run! deref writers)
+        _ @rebalancer
+        popped (mapcat deref poppers)
+        m @q]
+    (is (= (into (sorted-map) (map vector (range 1000) (range 1000)))
+           (into (sorted-map) popped)))
+    (is (= (into (sorted-map)
+                 (map vector (range 1001 9000 2) (map #(+ % 10000) (range 1001 9000 2))))
+           m))
+    (is (satisfies-invariant? m))
+    (.rebalance q 8)
+    (is (== 8 (.shardCount q)))
+    (is (= m @q))))
+
+
+;; [added removed changed], computed entry by entry
+(defn naive-diff [m1 m2]
+  [(apply dissoc (into {} m2) (keys m1))
+   (apply dissoc (into {} m1) (keys m2))
+   (into {} (filter (fn [[k p]] (and (contains? m1 k) (not= p (get m1 k)))))
+         m2)])
+
+
+(defspec check-diff 100
+  (prop/for-all [m1 psqgen
+                 m2 psqgen
+                 ops (gen/vector (gen/tuple gen/boolean igen igen))]
+    (let [updated (reduce (fn [m [dissoc? k p]]
+                            (if dissoc? (dissoc m k) (assoc m k p)))
+                          m1
+                          ops)]
+      (and (= (naive-diff m1 updated) (psq/diff m1 updated))
+           (= (naive-diff updated m1) (psq/diff updated m1))
+           (= (naive-diff m1 m2) (psq/diff m1 m2))
+           (= [{} {} {}] (psq/diff m1 m1))))))
+
+
+(defn serialize-roundtrip [x]
+  (let [bytes (java.io.ByteArrayOutputStream.)]
+    (with-open [out (java.io.ObjectOutputStream. bytes)]
+      (.writeObject out x))
+    (with-open [in (java.io.ObjectInputStream.
+                     (java.io.ByteArrayInputStream. (.toByteArray bytes)))]
+      (.readObject in))))
+
+
+(defn codec-roundtrip [^psq.PersistentPrioritySearchQueue m kcomp pcomp]
+  (let [bytes (java.io.ByteArrayOutputStream.)]
+    (with-open [out (java.io.DataOutputStream. bytes)]
+      (.writeTo m out psq.Codec/LONG psq.Codec/LONG))
+    (with-open [in (java.io.DataInputStream.
+                     (java.io.ByteArrayInputStream. (.toByteArray bytes)))]
+      (psq.PersistentPrioritySearchQueue/readFrom
+        in kcomp pcomp psq.Codec/LONG psq.Codec/LONG))))
+
+
+(defspec check-serialization 100
+  (prop/for-all [m psqgen
+                 m-by (psqgen-by > >)]
+    (let [m (with-meta m {:foo 1})
+          m' (serialize-roundtrip m)
+          m-by' (serialize-roundtrip m-by)
+          m'' (codec-roundtrip m (.comparator ^clojure.lang.Sorted m) compare)
+          ;; NB. the functions must be serializable too, and resolvable by
+          ;; the class loader of the psq classes
+          measured (psq/with-measure m (psq/measure 0 (constantly 1) +))
+          measured' (serialize-roundtrip measured)]
+      (and (= m m' m'' measured')
+           (= {:foo 1} (meta m'))
+           (= (seq m-by) (seq m-by'))
+           (= (some-> (peek m) val) (some-> (peek m') val) (some-> (peek m'') val))
+           (== (count m) (psq/measure-range measured'))
+           (every? satisfies-invariant? [m' m-by' m'' measured'])))))
+
+
 (defspec check-seq 100
   (prop/for-all [m psqgen]
     (let [sm (into (sorted-map) m)]
@@ -256,6 +672,107 @@
            (= (seq sm) (seq m))))))
 
 
+(defspec check-reduce 100
+  (prop/for-all [m psqgen
+                 n gen/s-pos-int]
+    (let [take-n (fn [acc x]
+                   (let [acc (conj acc x)]
+                     (if (>= (count acc) n) (reduced acc) acc)))]
+      (and (= (seq m) (seq (reduce conj [] m)))
+           (= (vec (take n m)) (reduce take-n [] m))))))
+
+
+(defspec check-reduce-kv 100
+  (prop/for-all [m (psqgen-by > >)
+                 n gen/s-pos-int]
+    (let [take-n (fn [acc k p]
+                   (let [acc (conj acc [k p])]
+                     (if (>= (count acc) n) (reduced acc) acc)))]
+      (and (= (seq m) (seq (reduce-kv #(conj %1 [%2 %3]) [] m)))
+           (= (vec (take n m)) (reduce-kv take-n [] m))))))
+
+
+(defspec check-iterators 100
+  (prop/for-all [m psqgen
+                 k igen]
+    (let [^psq.PersistentPrioritySearchQueue m m]
+      (and (= (seq m) (iterator-seq (.iterator m)))
+           (= (rseq m) (iterator-seq (.reverseIterator m)))
+           (= (subseq m >= k) (iterator-seq (.iteratorFrom m k true)))
+           (= (rsubseq m <= k) (iterator-seq (.iteratorFrom m k false)))))))
+
+
+(defspec check-iterators-by 100
+  (prop/for-all [m (psqgen-by > >)
+                 k igen]
+    (let [^psq.PersistentPrioritySearchQueue m m]
+      (and (= (seq m) (iterator-seq (.iterator m)))
+           (= (rseq m) (iterator-seq (.reverseIterator m)))
+           (= (subseq m >= k) (iterator-seq (.iteratorFrom m k true)))
+           (= (rsubseq m <= k) (iterator-seq (.iteratorFrom m k false)))))))
+
+
+(defspec check-chunked-seqs 100
+  (prop/for-all [m psqgen
+                 k igen]
+    (every? #(or (nil? %) (chunked-seq? %))
+            [(seq m) (rseq m) (subseq m >= k) (rsubseq m <= k)])))
+
+
+(defspec check-fold 100
+  (prop/for-all [m psqgen
+                 n gen/s-pos-int]
+    (and (= (reduce + (vals m))
+            (r/fold n + (fn [acc _ p] (+ acc p)) m))
+         (= (vec (seq m))
+            (r/fold n
+                    (r/monoid into vector)
+                    (fn [acc k p] (conj acc (MapEntry. k p)))
+                    m)))))
+
+
+(defspec check-adjust 100
+  (prop/for-all [m psqgen
+                 k igen
+                 p igen]
+    (let [expected (if (contains? m k) (assoc m k p) m)
+          updated (psq/update-priority m k p)
+          adjusted (psq/adjust m k #(- % p))]
+      (and (satisfies-invariant? updated)
+           (satisfies-invariant? adjusted)
+           (= expected updated)
+           (= (if (contains? m k) (update m k #(- % p)) m) adjusted)
+           (= (some-> (peek expected) val) (some-> (peek updated) val))
+           (or (contains? m k) (identical? m updated))))))
+
+
+;; NB. collecting a parallel stream preserves encounter order
+(defn stream-vec [^java.util.stream.Stream s]
+  (vec (.collect s (java.util.stream.Collectors/toList))))
+
+
+(defspec check-streams 100
+  (prop/for-all [m psqgen
+                 p igen
+                 [l h] (gen/fmap sort (gen/tuple igen igen))
+                 parallel? gen/boolean]
+    (let [^psq.PersistentPrioritySearchQueue m m
+          in-range? (fn [e] (<= l (key e) h))]
+      (and (= (count m) (.getExactSizeIfKnown (.spliterator m)))
+           (= (vec (seq m)) (stream-vec (.stream m)))
+           (= (vec (seq m)) (stream-vec (.parallelStream m)))
+           (= (filterv in-range? m)
+              (stream-vec (.rangeStream m l h parallel?)))
+           (= (filterv #(<= (val %) p) m)
+              (stream-vec (.atMostStream m p parallel?)))
+           (= (filterv #(< (val %) p) m)
+              (stream-vec (.belowStream m p parallel?)))
+           (= (filterv #(and (in-range? %) (<= (val %) p)) m)
+              (stream-vec (.atMostRangeStream m l h p parallel?)))
+           (= (filterv #(and (in-range? %) (< (val %) p)) m)
+              (stream-vec (.belowRangeStream m l h p parallel?)))))))
+
+
 (defspec check-priority-seq 100
   (prop/for-all [m psqgen]
     (= (map set (partition-by val (psq/priority-seq m)))
@@ -268,10 +785,227 @@
           (lazy-seq (peek-pop-priority-seq (pop psq))))))
 
 
+;; NB. entries with equal priorities may come out of priority-seq and repeated
+;; pops in different orders
 (defspec check-peek-pop 100
   (prop/for-all [m psqgen]
-    (= (psq/priority-seq m)
-       (peek-pop-priority-seq m))))
+    (= (map set (partition-by val (psq/priority-seq m)))
+       (map set (partition-by val (peek-pop-priority-seq m))))))
+
+
+(defspec check-pop-n 100
+  (prop/for-all [m psqgen
+                 n gen/nat
+                 p igen]
+    (letfn [(check [[entries residual]]
+              (and (satisfies-invariant? residual)
+                   (= (count m) (+ (count entries) (count residual)))
+                   (= m (into residual entries))
+                   (= entries (sort-by val entries))
+                   (every? (fn [e]
+                             (every? #(<= (val e) (val %)) residual))
+                           entries)))]
+      (let [[entries :as popped] (psq/pop-n m n)
+            [below :as popped<] (psq/pop< m p)
+            [at-most :as popped<=] (psq/pop<= m p)]
+        (and (check popped)
+             (check popped<)
+             (check popped<=)
+             (= (take n (peek-pop-priority-seq m)) entries)
+             (= (count (filter #(< (val %) p) m)) (count below))
+             (= (count (filter #(<= (val %) p) m)) (count at-most)))))))
+
+
+(defspec check-delete 100
+  (prop/for-all [m psqgen
+                 p igen
+                 low igen
+                 high igen]
+    (let [[low high] (sort [low high])
+          in-range? #(<= low (key %) high)]
+      (letfn [(check [[entries residual] pred]
+                (and (satisfies-invariant? residual)
+                     (= (meta m) (meta residual))
+                     (= entries (filter pred m))
+                     (= residual (into (sorted-map) (remove pred m)))))]
+        (and (check (psq/delete<= m p) #(<= (val %) p))
+             (check (psq/delete< m p) #(< (val %) p))
+             (check (psq/delete<= m p low high)
+                    #(and (<= (val %) p) (in-range? %)))
+             (check (psq/delete< m p low high)
+                    #(and (< (val %) p) (in-range? %))))))))
+
+
+(defspec check-long-psq 100
+  (prop/for-all [m psqgen
+                 k igen
+                 p igen
+                 [l h] (gen/fmap sort (gen/tuple igen igen))]
+    (let [lm (psq/long-psq m)]
+      (and (instance? psq.LongLongPrioritySearchQueue lm)
+           (= m lm)
+           (= (count m) (count lm))
+           (= (seq m) (seq lm))
+           (= (rseq m) (rseq lm))
+           (= (subseq m >= k) (subseq lm >= k))
+           (= (rsubseq m < k) (rsubseq lm < k))
+           (= (get m k) (get lm k))
+           (= (psq/rank m k) (psq/rank lm k))
+           (every? #(= (psq/nearest m % k) (psq/nearest lm % k)) [< <= >= >])
+           (= (dissoc m k) (dissoc lm k))
+           (= (assoc m k p) (assoc lm k p))
+           (= (map set (partition-by val (psq/priority-seq m)))
+              (map set (partition-by val (psq/priority-seq lm)))
+              (map set (partition-by val (peek-pop-priority-seq lm))))
+           (= (psq/seq<= m p) (psq/seq<= lm p))
+           (= (psq/seq< m p) (psq/seq< lm p))
+           (= (psq/rseq<= m p) (psq/rseq<= lm p))
+           (= (.atMostRange ^psq.IPrioritySearchQueue m l h p)
+              (.atMostRange ^psq.IPrioritySearchQueue lm l h p))
+           (= (.reverseBelowRange ^psq.IPrioritySearchQueue m l h p)
+              (.reverseBelowRange ^psq.IPrioritySearchQueue lm l h p))
+           ;; NB. key range bounds need not be longs
+           (every? (fn [x]
+                     (and (= (subseq m > x) (subseq lm > x))
+                          (= (subseq m >= x) (subseq lm >= x))
+                          (= (rsubseq m < x) (rsubseq lm < x))
+                          (= (rsubseq m <= x) (rsubseq lm <= x))
+                          (= (.atMostRange ^psq.IPrioritySearchQueue m x (+ h 0.5) p)
+                             (.atMostRange ^psq.IPrioritySearchQueue lm x (+ h 0.5) p))
+                          (= (.reverseBelowRange ^psq.IPrioritySearchQueue m (- l 1/2) x p)
+                             (.reverseBelowRange ^psq.IPrioritySearchQueue lm (- l 1/2) x p))))
+                   [(+ k 0.5) (- k 1/3) (bigdec k) (bigint k) 1e30 -1e30
+                    Double/POSITIVE_INFINITY Double/NEGATIVE_INFINITY])
+           (let [lm' (serialize-roundtrip (with-meta lm {:foo 1}))]
+             (and (instance? psq.LongLongPrioritySearchQueue lm')
+                  (= lm lm')
+                  (= {:foo 1} (meta lm'))
+                  (= (some-> (peek lm) val) (some-> (peek lm') val))))))))
+
+
+(deftest frozen-with-meta-after-write
+  (let [f (psq/freeze (psq/psqueue 1 1 2 2 3 3))
+        _ (assoc f 4 4)
+        f' (with-meta f {:x 1})]
+    (is (= {:x 1} (meta (assoc f' 5 5))))
+    (is (= {:x 1} (meta (dissoc f' 1))))
+    (is (= {:x 1} (meta (pop f'))))
+    (is (nil? (meta (assoc f 5 5))))
+    (is (= {:y 2} (meta (assoc (with-meta f' {:y 2}) 5 5))))))
+
+
+(deftest pop-empty
+  (is (thrown? IllegalStateException (pop (psq/psqueue))))
+  (is (thrown? IllegalStateException (pop (psq/psqueue-by > >))))
+  (is (thrown? IllegalStateException (pop (psq/long-psq (psq/psqueue)))))
+  (is (thrown? IllegalStateException (pop (psq/freeze (psq/psqueue)))))
+  (is (thrown? IllegalStateException (pop (pop (psq/psqueue 1 1))))))
+
+
+(deftest long-psq-lookup-of-non-long-keys
+  (let [lm (psq/long-psq (psq/psq [[1 1] [2 2]]))]
+    (doseq [k [:a "1" 1.0 nil]]
+      (is (nil? (get lm k)))
+      (is (= ::none (get lm k ::none)))
+      (is (not (contains? lm k)))
+      (is (nil? (find lm k)))
+      (is (nil? (psq/nearest lm <= k))))
+    (is (thrown? ClassCastException (assoc lm :a 1)))
+    (is (thrown? IllegalArgumentException (subseq lm > :a)))
+    (is (thrown? IllegalArgumentException (subseq lm > Double/NaN)))))
+
+
+(deftest long-psq-lookup-of-big-integer-keys
+  (let [lm (psq/long-psq (psq/psq [[1 1] [2 2]]))]
+    (doseq [k [1N (biginteger 1) (short 1) (byte 1)]]
+      (is (= 1 (get lm k)))
+      (is (contains? lm k))
+      (is (= [1 1] (vec (find lm k))))
+      (is (= 0 (psq/rank lm k))))
+    (is (= {1 3 2 2} (assoc lm 1N 3)))
+    (is (= {2 2} (dissoc lm 1N)))
+    (is (nil? (get lm (inc' Long/MAX_VALUE))))
+    (is (not (contains? lm (.shiftLeft (biginteger 1) 64))))))
+
+
+;; NB. keys and priorities of each type are compared by a fast path
+(def default-comparator-gens
+  [gen/int
+   (gen/fmap #(/ % 2.0) gen/int)
+   ;; NB. psq and sorted-map keep different keys of equal numeric value
+   (gen/one-of [gen/int (gen/fmap #(+ % 0.5) gen/int)])
+   gen/string-alphanumeric
+   gen/keyword])
+
+
+(defspec check-default-comparator 100
+  (prop/for-all [[kps p] (gen/bind
+                           (gen/tuple (gen/elements default-comparator-gens)
+                                      (gen/elements default-comparator-gens))
+                           (fn [[kgen pgen]]
+                             (gen/tuple (gen/vector (gen/tuple kgen pgen))
+                                        pgen)))]
+    (let [m (psq/psq kps)
+          sm (into (sorted-map) kps)]
+      (and (= (seq sm) (seq m))
+           (every? #(= (val %) (get m (key %))) sm)
+           (= (map set (partition-by val (sort-by val (seq sm))))
+              (map set (partition-by val (peek-pop-priority-seq m))))
+           (= (filter #(<= (compare (val %) p) 0) sm)
+              (psq/seq<= m p))))))
+
+
+(defspec check-freeze 100
+  (prop/for-all [m psqgen
+                 k igen
+                 p igen
+                 [l h] (gen/fmap sort (gen/tuple igen igen))]
+    (let [f (psq/freeze m)
+          ^psq.IPrioritySearchQueue m' m
+          ^psq.IPrioritySearchQueue f' f]
+      (and (instance? psq.FrozenPrioritySearchQueue f)
+           (= m f)
+           (= (count m) (count f))
+           (= (seq m) (seq f))
+           (= (rseq m) (rseq f))
+           (= (subseq m >= k) (subseq f >= k))
+           (= (rsubseq m < k) (rsubseq f < k))
+           (= (get m k) (get f k))
+           (= (contains? m k) (contains? f k))
+           (= (map #(nth m %) (range (count m)))
+              (map #(nth f %) (range (count f))))
+           (= (psq/rank m k) (psq/rank f k))
+           (every? #(= (psq/nearest m % k) (psq/nearest f % k)) [< <= >= >])
+           (= (some-> (peek m) val) (some-> (peek f) val))
+           (= (map set (partition-by val (psq/priority-seq m)))
+              (map set (partition-by val (psq/priority-seq f))))
+           (= (psq/seq<= m p) (psq/seq<= f p))
+           (= (psq/seq< m p) (psq/seq< f p))
+           (= (psq/rseq<= m p) (psq/rseq<= f p))
+           (= (.atMostRange m' l h p) (.atMostRange f' l h p))
+           (= (.reverseBelowRange m' l h p) (.reverseBelowRange f' l h p))
+           (instance? psq.PersistentPrioritySearchQueue (assoc f k p))
+           (= (assoc m k p) (assoc f k p))
+           (= (dissoc m k) (dissoc f k))
+           (or (empty? m) (= (count (pop m)) (count (pop f))))
+           (= m (psq/thaw f))
+           (satisfies-invariant? (psq/thaw f))
+           (let [f'' (serialize-roundtrip f)]
+             (and (instance? psq.FrozenPrioritySearchQueue f'')
+                  (= m f'')
+                  (= (assoc m k p) (assoc f'' k p))))))))
+
+
+(defspec check-priority-reduce 100
+  (prop/for-all [m psqgen
+                 n gen/s-pos-int]
+    (let [^psq.PersistentPrioritySearchQueue m m
+          take-n (fn [acc x]
+                   (let [acc (conj acc x)]
+                     (if (>= (count acc) n) (reduced acc) acc)))]
+      (and (= (psq/priority-seq m) (seq (.priorityReduce m conj [])))
+           (= (vec (take n (psq/priority-seq m)))
+              (.priorityReduce m take-n []))))))
 
 
 (defspec check-priority-seq-by 100
@@ -329,6 +1063,33 @@
            (= sub (subseq-subrange m test limit))))))
 
 
+(defspec check-subrange-model 100
+  (prop/for-all [m psqgen
+                 start igen
+                 end igen
+                 start-test (gen/elements [> >=])
+                 end-test (gen/elements [< <=])]
+    (let [m (with-meta m {:foo 1})
+          sm (into (sorted-map) m)
+          [start end] (sort [start end])
+          subs (cons [(psq/subrange m start-test start end-test end)
+                      (subseq sm start-test start end-test end)]
+                     (for [[test limit] [[start-test start] [end-test end]]]
+                       [(psq/subrange m test limit) (subseq sm test limit)]))]
+      (and (every? (fn [[sub expected]]
+                     (and (= (seq expected) (seq sub))
+                          (= {:foo 1} (meta sub))
+                          (= (some->> (seq expected) (map val) (apply min))
+                             (some-> (peek sub) val))
+                          (satisfies-invariant? sub)))
+                   subs)
+           ;; NB. reversed bounds are not checked for empty PSQs
+           (or (== start end)
+               (empty? m)
+               (try (psq/subrange m start-test end end-test start) false
+                    (catch IndexOutOfBoundsException _ true)))))))
+
+
 (defspec check-singleton-subrange 100
   (prop/for-all [m psqgen
                  k igen]
@@ -697,6 +1458,25 @@
        (psq/psq (apply hash-map xs)))))
 
 
+(defspec check-psq-from-sorted 100
+  (prop/for-all [m (gen/map igen igen)]
+    (let [sm (into (sorted-map) m)
+          sm-by (into (sorted-map-by >) m)
+          psq (psq/psq-from-sorted sm)
+          psq-by (psq/psq-from-sorted-by > > sm-by)]
+      (and (= sm psq)
+           (= sm-by psq-by)
+           (= (seq sm-by) (seq psq-by))
+           (satisfies-invariant? psq)
+           (satisfies-invariant? psq-by)))))
+
+
+(deftest psq-from-sorted-checks-order
+  (is (= {0 1 2 4} (psq/psq-from-sorted [[0 1] [2 3] [2 4]])))
+  (is (thrown? IllegalArgumentException
+               (psq/psq-from-sorted [[2 3] [0 1]]))))
+
+
 (defn subseq-nearest [psq test key]
   (let [seqfn (cond
                 (#{< <=} test) rsubseq